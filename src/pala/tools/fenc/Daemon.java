@@ -0,0 +1,394 @@
+package pala.tools.fenc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+import pala.libs.generic.parsers.cli.CLIParams;
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.BufferPool;
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.DecryptionProcessor;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.HashProcessor;
+
+/**
+ * <p>
+ * Runs the program as a long-lived daemon that takes jobs over a Unix domain
+ * socket, so that processing a few files doesn't pay for starting a JVM,
+ * loading classes, and running the cipher code cold each time. Before
+ * accepting jobs, the daemon {@link #warmUp() warms up} by encrypting,
+ * decrypting, and hashing a scratch file repeatedly.
+ * </p>
+ * <p>
+ * A job is a set of command line arguments, run exactly as the program would
+ * run them, with relative paths resolved against the client's working
+ * directory. Jobs run concurrently, each on its own thread. The
+ * {@link CipherKey} derived for each key is kept and reused by later jobs. The
+ * daemon reports how long each job took.
+ * </p>
+ * <p>
+ * The protocol is: the client sends its working directory, the number of
+ * arguments, and each argument, as in {@link DataOutputStream#writeUTF(String)}
+ * and {@link DataOutputStream#writeInt(int)}. The daemon answers with frames,
+ * each a byte giving the stream ({@link #STDOUT} or {@link #STDERR}) followed
+ * by an int length and that many bytes, and ends the job with a single
+ * {@link #END} byte.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class Daemon {
+
+	static final int END = 0, STDOUT = 1, STDERR = 2;
+
+	/**
+	 * The most keys that the daemon keeps derived keys for. The cache is cleared
+	 * when it grows past this.
+	 */
+	private static final int KEY_CACHE_LIMIT = 64;
+
+	/**
+	 * The number of times each operation is run while warming up.
+	 */
+	private static final int WARM_UP_ROUNDS = 32;
+
+	private final Map<String, CipherKey> keys = new ConcurrentHashMap<>();
+	private final AtomicInteger jobs = new AtomicInteger();
+	private final BufferPool pool;
+	private final MessageLogger logger;
+
+	private Daemon(BufferPool pool, MessageLogger logger) {
+		this.pool = pool;
+		this.logger = logger;
+	}
+
+	private CipherKey key(String key) {
+		CipherKey k = keys.get(key);
+		if (k == null) {
+			if (keys.size() >= KEY_CACHE_LIMIT)
+				keys.clear();
+			keys.put(key, k = new CipherKey(key));
+		}
+		return k;
+	}
+
+	/**
+	 * Listens on the specified socket and runs the jobs sent to it until the
+	 * program is killed.
+	 *
+	 * @param socket The path to create the socket at.
+	 * @param pool   The {@link BufferPool} that every job takes its buffers
+	 *               from, so that the memory budget covers all of them at once.
+	 * @param logger The logger for the daemon's own messages.
+	 */
+	static void serve(Path socket, BufferPool pool, MessageLogger logger) {
+		if (Files.exists(socket)) {
+			// Refuse to replace a socket that a running daemon is listening on, or a
+			// file that isn't a socket at all.
+			if (Files.isRegularFile(socket) || Files.isDirectory(socket)) {
+				logger.failure("DAEM", socket + " already exists and is not a socket.");
+				return;
+			}
+			try {
+				SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+				logger.failure("DAEM", "Another daemon is already listening on " + socket + '.');
+				return;
+			} catch (IOException e) {
+				// A stale socket left by a daemon that was killed.
+				try {
+					Files.delete(socket);
+				} catch (IOException e1) {
+					logger.failure("DAEM", "Failed to remove the stale socket " + socket + ". [Err msg: "
+							+ e1.getLocalizedMessage() + ']');
+					return;
+				}
+			}
+		}
+
+		Daemon daemon = new Daemon(pool, logger);
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			bind(server, socket, logger);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> socket.toFile().delete()));
+			UserPrincipal owner;
+			try {
+				owner = Files.getOwner(socket);
+			} catch (IOException | UnsupportedOperationException e) {
+				owner = null;
+			}
+
+			daemon.warmUp();
+			logger.success("DAEM", "Listening for jobs on " + socket + '.');
+
+			AtomicInteger count = new AtomicInteger();
+			ExecutorService executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "fenc-job-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			while (true) {
+				SocketChannel channel = server.accept();
+				if (owner != null && !isOwner(channel, owner)) {
+					logger.failure("DAEM", "Refused a connection from a user other than the daemon's own.");
+					channel.close();
+					continue;
+				}
+				executor.execute(() -> daemon.handle(channel));
+			}
+		} catch (IOException e) {
+			logger.failure("DAEM",
+					"Failed to listen on the socket " + socket + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Binds the server to the socket such that only the daemon's user can ever
+	 * connect to it. Jobs carry keys and can rewrite any file the daemon can, so
+	 * the socket is bound inside a directory only the daemon's user can enter,
+	 * restricted, then moved into place; it is never reachable with looser
+	 * permissions. Where that isn't possible (e.g. without POSIX permissions), the
+	 * socket is bound directly and a failure is reported.
+	 */
+	private static void bind(ServerSocketChannel server, Path socket, MessageLogger logger) throws IOException {
+		Path dir;
+		try {
+			dir = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".fenc-daemon",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			logger.failure("DAEM", "Failed to restrict the permissions of the socket " + socket
+					+ ". Other users may be able to submit jobs. [Err msg: " + e.getLocalizedMessage() + ']');
+			return;
+		}
+		Path temp = dir.resolve("socket");
+		try {
+			server.bind(UnixDomainSocketAddress.of(temp));
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			Files.move(temp, socket, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Determines whether the peer of a connection is the daemon's own user. The
+	 * socket's permissions should already prevent other users from connecting;
+	 * this catches anything that slips past them (e.g. a permissive file
+	 * system). Where the peer can't be determined, the permissions are relied on.
+	 */
+	private static boolean isOwner(SocketChannel channel, UserPrincipal owner) {
+		UnixDomainPrincipal peer;
+		try {
+			peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+		} catch (IOException | UnsupportedOperationException e) {
+			return true;
+		}
+		return peer.user().equals(owner);
+	}
+
+	/**
+	 * Encrypts, decrypts, and hashes a scratch file in each format, enough times
+	 * for the JIT to compile the paths that jobs will take.
+	 */
+	private void warmUp() {
+		long start = System.nanoTime();
+		try {
+			File f = File.createTempFile("fenc-warmup", null), enc = File.createTempFile("fenc-warmup", null);
+			try {
+				byte[] data = new byte[1 << 20];
+				new Random().nextBytes(data);
+				Files.write(f.toPath(), data);
+				CipherKey key = new CipherKey("warm-up");
+				for (int i = 0; i < WARM_UP_ROUNDS; i++)
+					for (FileFormat format : FileFormat.values()) {
+						EncryptionProcessor.encryptFile(f, enc, 65536, key, format);
+						DecryptionProcessor.decryptFile(enc, f, 65536, key);
+						HashProcessor.hashFile(f, 65536);
+					}
+			} finally {
+				f.delete();
+				enc.delete();
+			}
+			logger.success("WARM", "Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		} catch (Exception e) {
+			logger.failure("WARM", "Failed to warm up; the first jobs may be slower. [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Sends a job's output back to the client in frames. Output produced after
+	 * the client has gone away is discarded.
+	 */
+	private static final class Connection implements MessageLogger {
+		private final DataOutputStream out;
+		private boolean broken;
+
+		private Connection(SocketChannel channel) {
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+		}
+
+		private synchronized void frame(int stream, byte[] b, int off, int len) {
+			if (broken)
+				return;
+			try {
+				out.write(stream);
+				if (stream != END) {
+					out.writeInt(len);
+					out.write(b, off, len);
+				}
+				out.flush();
+			} catch (IOException e) {
+				broken = true;
+			}
+		}
+
+		private void line(int stream, String prefix, String message) {
+			byte[] b = ('[' + prefix + "]: " + message + '\n').getBytes(StandardCharsets.UTF_8);
+			frame(stream, b, 0, b.length);
+		}
+
+		@Override
+		public void success(String prefix, String message) {
+			line(STDOUT, prefix, message);
+		}
+
+		@Override
+		public void failure(String prefix, String message) {
+			line(STDERR, prefix, message);
+		}
+
+		private OutputStream stdout() {
+			return new OutputStream() {
+
+				@Override
+				public void write(int b) {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					frame(STDOUT, b, off, len);
+				}
+			};
+		}
+	}
+
+	private void handle(SocketChannel channel) {
+		long start = System.nanoTime();
+		int id = jobs.incrementAndGet();
+		try (channel) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			String workingDirectory = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = in.readUTF();
+
+			Connection connection = new Connection(channel);
+			CLIParams flags = new CLIParams(args);
+			String mode = "invalid";
+			try {
+				Options options = new Options(flags);
+				if (options.getDaemonSocket() != null || options.getSocket() != null)
+					connection.failure("DAEM", "A job can't start or contact a daemon.");
+				else if (options.isWatch())
+					connection.failure("DAEM", "A job can't run in watch mode.");
+				else {
+					mode = options.getMode().name().toLowerCase();
+					FileEncrypter.run(flags, options,
+							new Invocation(Path.of(workingDirectory), connection, connection.stdout(), null, this::key,
+									pool));
+				}
+			} catch (IllegalArgumentException e) {
+				connection.failure("ARGS", e.getMessage());
+			} catch (RuntimeException e) {
+				connection.failure("UNKN",
+						"The job failed unexpectedly. [Err msg: " + e.getLocalizedMessage() + ']');
+			}
+			connection.frame(END, null, 0, 0);
+			logger.success("JOBT", "Job " + id + " (" + mode + ", " + flags.getUnnamed().size() + " paths) took "
+					+ (System.nanoTime() - start) / 1000 / 1000.0 + " ms.");
+		} catch (IOException e) {
+			logger.failure("DAEM",
+					"Failed to read job " + id + " from its client. [Err msg: " + e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Sends the specified arguments to the daemon listening on the socket as a
+	 * job, and prints the job's output as it arrives.
+	 *
+	 * @param socket The daemon's socket.
+	 * @param args   The program's arguments. The {@link Options#getSocket()
+	 *               socket} argument itself is not sent.
+	 */
+	static void submit(Path socket, String[] args) {
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeUTF(Path.of("").toAbsolutePath().toString());
+			int count = 0;
+			for (String arg : args)
+				if (!isSocketArg(arg))
+					count++;
+			out.writeInt(count);
+			for (String arg : args)
+				if (!isSocketArg(arg))
+					out.writeUTF(arg);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			byte[] buff = new byte[8192];
+			int stream;
+			while ((stream = in.read()) != END) {
+				if (stream == -1) {
+					System.err.println("[DAEM]: The daemon closed the connection before the job finished.");
+					break;
+				}
+				PrintStream dest = stream == STDERR ? System.err : System.out;
+				for (int len = in.readInt(); len > 0;) {
+					int c = in.read(buff, 0, Math.min(len, buff.length));
+					if (c == -1)
+						throw new IOException("The connection ended in the middle of a frame.");
+					dest.write(buff, 0, c);
+					len -= c;
+				}
+				dest.flush();
+			}
+		} catch (IOException e) {
+			System.err.println(
+					"[DAEM]: Failed to run the job on the daemon at " + socket + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		}
+	}
+
+	private static boolean isSocketArg(String arg) {
+		return arg.startsWith("--socket=") || arg.startsWith("-sk=");
+	}
+
+}
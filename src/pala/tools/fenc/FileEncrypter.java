@@ -1,16 +1,42 @@
 package pala.tools.fenc;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
 
 import pala.libs.generic.JavaTools;
 import pala.libs.generic.parsers.cli.CLIParams;
 import pala.tools.fenc.logging.MessageLogger;
 import pala.tools.fenc.logging.PeriodicSuccessLogger;
+import pala.tools.fenc.processing.BufferPool;
+import pala.tools.fenc.processing.CipherKey;
 import pala.tools.fenc.processing.CipherProcessor;
+import pala.tools.fenc.processing.CipherProcessor.Durability;
+import pala.tools.fenc.processing.DecryptionProcessor;
+import pala.tools.fenc.processing.DirectoryProcessor;
+import pala.tools.fenc.processing.DirectoryWatcher;
+import pala.tools.fenc.processing.FileIO;
+import pala.tools.fenc.processing.GroupCommit;
 import pala.tools.fenc.processing.HashProcessor;
+import pala.tools.fenc.processing.Journal;
+import pala.tools.fenc.processing.KeySet;
+import pala.tools.fenc.processing.LaneScheduler;
+import pala.tools.fenc.processing.OutputTree;
+import pala.tools.fenc.processing.PathFilter;
+import pala.tools.fenc.processing.RekeyProcessor;
+import pala.tools.fenc.processing.Sharding;
+import pala.tools.fenc.processing.TempFiles;
+import pala.tools.fenc.processing.Throttle;
+import pala.tools.fenc.processing.Traversal;
+import pala.tools.fenc.processing.VerificationProcessor;
 
 public class FileEncrypter {
 
@@ -28,40 +54,380 @@ public class FileEncrypter {
 		// java -jar fenc.jar -k="Some key" --dec -f F:/some/folder/on/f/drive
 		// /some/file/on/current/drive.txt some/relative/folder/
 		CLIParams flags = new CLIParams(args);
-		Options options = new Options(flags);
+		Options options;
+		try {
+			options = new Options(flags);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
 
-		if (options.isKeygenMode())
-			genkeys(options);
+		if (options.getDaemonSocket() != null)
+			Daemon.serve(Path.of(options.getDaemonSocket()), new BufferPool(options.getMaxMemory()),
+					MessageLogger.simpleLogger());
+		else if (options.getSocket() != null)
+			Daemon.submit(Path.of(options.getSocket()), args);
 		else
-			(options.isHashMode()
-					? new HashProcessor(options.isSuppressSuccessMessages() ? MessageLogger.suppressSuccess()
-							: MessageLogger.simpleLogger(), options.getBufferSize())
-					: options.isNotifyCycleEnabled()
-							? CipherProcessor.create(options.isEncryptionMode(), options.getKey(),
-									options.getBufferSize(),
-									new PeriodicSuccessLogger(MessageLogger.simpleLogger(),
-											options.getNotificationCycleTime()))
-							: CipherProcessor.create(options.isEncryptionMode(), options.getKey(),
-									options.getBufferSize(),
-									options.isSuppressSuccessMessages() ? MessageLogger.suppressSuccess()
-											: MessageLogger.simpleLogger()))
-					.process(JavaTools.addAll(flags.getUnnamed(), File::new,
-							new ArrayList<>(flags.getUnnamed().size())));
+			run(flags, options, Invocation.local());
+	}
+
+	/**
+	 * Runs the program with the specified arguments.
+	 * 
+	 * @param flags      The arguments.
+	 * @param options    The {@link Options} parsed from the arguments.
+	 * @param invocation The {@link Invocation} to run in.
+	 */
+	static void run(CLIParams flags, Options options, Invocation invocation) {
+		if (options.isMergeMode()) {
+			merge(flags, options, invocation);
+			return;
+		}
+		Summary summary = null;
+		if (options.getSummary() != null) {
+			summary = new Summary();
+			invocation = invocation.withLogger(summary.recording(invocation.getLogger()));
+		}
+		if (options.isSharded()) {
+			Path claims = null;
+			if (options.getClaimDirectory() != null)
+				try {
+					claims = Files.createDirectories(invocation.file(options.getClaimDirectory()).toPath());
+				} catch (IOException e) {
+					invocation.getLogger().failure("CLAM", "Failed to create the claim directory "
+							+ options.getClaimDirectory() + ". Nothing was processed. [Err msg: "
+							+ e.getLocalizedMessage() + ']');
+					return;
+				}
+			invocation = invocation.withSharding(new Sharding(options.getShardIndex(), options.getShardCount(),
+					claims, options.getWorker(), invocation.file("").toPath(), invocation.getLogger()));
+		}
+
+		MessageLogger base = invocation.getLogger();
+		BufferPool pool = invocation.getPool() == null ? new BufferPool(options.getMaxMemory()) : invocation.getPool();
+		Throttle throttle = null;
+		Thread throttleControl = null;
+		if (options.isThrottled()) {
+			throttle = new Throttle(options.getMaxRate(), options.getMaxFiles());
+			if (options.getThrottleFile() != null)
+				throttleControl = ThrottleControl.watch(invocation.file(options.getThrottleFile()), throttle, base);
+		}
+		FileIO io = new FileIO(options.isDirectIO(), options.getBufferSize(), throttle, pool,
+				options.getOutput() != null);
+
+		try {
+			if (options.isKeygenMode())
+				genkeys(options, invocation);
+			else if (options.isHashMode())
+				process(new HashProcessor(
+						options.isSuppressSuccessMessages() ? MessageLogger.suppressSuccess(base) : base,
+						options.getBufferSize(), io), flags, options, invocation);
+			else if (options.isVerifyMode()) {
+				VerificationProcessor processor = new VerificationProcessor(invocation.getKey(options.getKey()),
+						options.getChunkWorkers(),
+						options.isSuppressSuccessMessages() ? MessageLogger.suppressSuccess(base) : base);
+				try {
+					process(processor, flags, options, invocation);
+				} finally {
+					processor.finish();
+				}
+			} else
+				cipher(flags, options, invocation, io);
+		} finally {
+			if (throttleControl != null)
+				throttleControl.interrupt();
+			if (options.isPoolStats())
+				base.success("POOL", "Buffer pool: " + pool.stats() + '.');
+		}
+
+		if (invocation.getSharding() != null)
+			invocation.getSharding().finish();
+		if (summary != null) {
+			if (invocation.getSharding() != null)
+				summary.record(invocation.getSharding());
+			try {
+				summary.write(invocation.file(options.getSummary()));
+			} catch (IOException e) {
+				base.failure("SUMM", "Failed to write the summary file " + options.getSummary() + ". [Err msg: "
+						+ e.getLocalizedMessage() + ']');
+			}
+		}
+	}
+
+	/**
+	 * Combines the summaries given as arguments and prints the result, writing it
+	 * to the {@link Options#getSummary() summary file} if one was specified.
+	 */
+	private static void merge(CLIParams flags, Options options, Invocation invocation) {
+		MessageLogger logger = invocation.getLogger();
+		List<Summary> summaries = new ArrayList<>();
+		for (String path : flags.getUnnamed())
+			try {
+				summaries.add(Summary.read(invocation.file(path)));
+			} catch (IOException e) {
+				logger.failure("MERG", "Failed to read the summary " + path + ". [Err msg: " + e.getLocalizedMessage()
+						+ ']');
+			}
+		Summary.check(summaries, logger);
+		Summary merged = Summary.merge(summaries);
+		merged.report(logger);
+		if (options.getSummary() != null)
+			try {
+				merged.write(invocation.file(options.getSummary()));
+			} catch (IOException e) {
+				logger.failure("SUMM", "Failed to write the summary file " + options.getSummary() + ". [Err msg: "
+						+ e.getLocalizedMessage() + ']');
+			}
+	}
+
+	private static void cipher(CLIParams flags, Options options, Invocation invocation, FileIO io) {
+		MessageLogger logger = options.isSuppressSuccessMessages() && !options.isNotifyCycleEnabled()
+				? MessageLogger.suppressSuccess(invocation.getLogger())
+				: invocation.getLogger();
+		KeySet keys = null;
+		if (options.getKeyFile() != null)
+			try {
+				keys = readKeys(options, invocation);
+			} catch (IOException e) {
+				logger.failure("KEYF", "Failed to read the key file " + options.getKeyFile()
+						+ ". Nothing was processed. [Err msg: " + e.getLocalizedMessage() + ']');
+				return;
+			}
+
+		CipherKey key = options.getKey() == null ? null : invocation.getKey(options.getKey());
+		CipherProcessor processor;
+		if (keys != null)
+			processor = options.isNotifyCycleEnabled()
+					? new DecryptionProcessor(keys, options.getBufferSize(),
+							new PeriodicSuccessLogger(logger, options.getNotificationCycleTime()))
+					: new DecryptionProcessor(keys, options.getBufferSize(), logger);
+		else if (options.isRekeyMode()) {
+			CipherKey newKey = invocation.getKey(options.getNewKey());
+			processor = options.isNotifyCycleEnabled()
+					? new RekeyProcessor(key, newKey, options.getBufferSize(), options.getFormat(),
+							new PeriodicSuccessLogger(logger, options.getNotificationCycleTime()))
+					: new RekeyProcessor(key, newKey, options.getBufferSize(), options.getFormat(), logger);
+		} else
+			processor = options.isNotifyCycleEnabled()
+					? CipherProcessor.create(options.isEncryptionMode(), key, options.getBufferSize(),
+							options.getFormat(), new PeriodicSuccessLogger(logger, options.getNotificationCycleTime()))
+					: CipherProcessor.create(options.isEncryptionMode(), key, options.getBufferSize(),
+							options.getFormat(), logger);
+		processor.setIO(io);
+		if (options.getOutput() != null) {
+			OutputTree output = new OutputTree(invocation.file(options.getOutput()), options.isPreserve());
+			for (String path : flags.getUnnamed()) {
+				File source = invocation.file(path);
+				if (source.isDirectory())
+					output.addSource(source);
+			}
+			processor.setOutput(output);
+		}
+
+		Journal journal = null;
+		if (options.getJournal() != null) {
+			try {
+				journal = Journal.open(invocation.file(options.getJournal()), options.isResume());
+			} catch (IOException e) {
+				logger.failure("JRNL", "Failed to open the journal file " + options.getJournal()
+						+ ". Nothing was processed. [Err msg: " + e.getLocalizedMessage() + ']');
+				return;
+			}
+			processor.setJournal(journal);
+		}
+
+		processor.setDurability(options.getDurability());
+		GroupCommit group = null;
+		if (options.getDurability() == Durability.GROUP)
+			processor.setGroupCommit(group = new GroupCommit(options.getGroupFiles(), options.getGroupDelay(),
+					journal, logger));
+
+		TempFiles temps = new TempFiles(null);
+		processor.setTempFiles(temps);
+		temps.sweep(logger);
+		if (journal != null)
+			journal.recover(io, logger);
+
+		try {
+			process(processor, flags, options, invocation);
+		} finally {
+			// Files waiting for their group are only reported, and committed to the
+			// journal, once it's forced.
+			if (group != null) {
+				group.close();
+				if (!options.isSuppressSuccessMessages())
+					group.report(logger);
+			}
+			temps.close();
+			if (keys != null)
+				for (KeySet.Key k : keys.getKeys())
+					logger.success("KEYS", "Decrypted " + k.getCount() + " files with " + k.getName() + '.');
+			if (journal != null) {
+				if (journal.getSkipped() != 0)
+					logger.success("RSME", "Skipped " + journal.getSkipped() + " files committed by the previous run.");
+				try {
+					journal.close();
+				} catch (IOException e) {
+					logger.failure("JRNL", "Failed to close the journal file " + options.getJournal() + ". [Err msg: "
+							+ e.getLocalizedMessage() + ']');
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the {@link Options#getKeyFile() key file} into a {@link KeySet}, along
+	 * with the {@link Options#getKey() key}, if one was given. Keys are named by
+	 * where they came from, so that they aren't printed.
+	 */
+	private static KeySet readKeys(Options options, Invocation invocation) throws IOException {
+		KeySet keys = new KeySet();
+		if (options.getKey() != null)
+			keys.add(invocation.getKey(options.getKey()), "the key given by -k");
+		int line = 0;
+		for (String k : Files.readAllLines(invocation.file(options.getKeyFile()).toPath())) {
+			line++;
+			if (!k.isEmpty() && !keys.add(invocation.getKey(k), "the key on line " + line + " of the key file"))
+				invocation.getLogger().failure("KEYF",
+						"The key on line " + line + " of the key file is a duplicate and was ignored.");
+		}
+		if (keys.size() == 0)
+			throw new IOException("The key file has no keys in it.");
+		return keys;
+	}
+
+	/**
+	 * Processes each of the files specified as arguments, then each of the files
+	 * in the {@link Options#getFileList() file list}, if one was specified.
+	 * 
+	 * @param processor  The {@link DirectoryProcessor} to process the files with.
+	 * @param flags      The command line arguments.
+	 * @param options    The parsed {@link Options}.
+	 * @param invocation The {@link Invocation} being run in.
+	 */
+	private static void process(DirectoryProcessor processor, CLIParams flags, Options options,
+			Invocation invocation) {
+		if (options.isWatch())
+			watch(processor, flags, options, invocation);
+		else if (options.isLaneSchedulingEnabled()) {
+			// Files are claimed as they're queued, so when claiming, only queue as many
+			// as can be worked on, leaving the rest for other processes.
+			LaneScheduler scheduler = new LaneScheduler(processor, options.getLargeFileSize(),
+					options.getSmallWorkers(), options.getLargeWorkers(), invocation.getLogger(),
+					options.getClaimDirectory() == null ? LaneScheduler.QUEUE_LIMIT
+							: Math.max(options.getSmallWorkers(), options.getLargeWorkers()));
+			try {
+				traverse(scheduler, flags, options, invocation);
+			} finally {
+				scheduler.finish();
+			}
+		} else
+			traverse(processor, flags, options, invocation);
+	}
+
+	private static void traverse(DirectoryProcessor processor, CLIParams flags, Options options,
+			Invocation invocation) {
+		MessageLogger logger = options.isSuppressSuccessMessages()
+				? MessageLogger.suppressSuccess(invocation.getLogger())
+				: invocation.getLogger();
+		PathFilter filter;
+		try {
+			filter = filter(options, invocation);
+		} catch (IOException | IllegalArgumentException e) {
+			logger.failure("FLTR", "Failed to read the filter rules. Nothing was processed. [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+			return;
+		}
+
+		Traversal traversal = new Traversal(processor, options.getSymlinks(), logger, filter,
+				invocation.getSharding());
+		process0(traversal, flags, options, invocation);
+		traversal.report();
+		if (filter != null)
+			filter.report(logger);
+	}
+
+	/**
+	 * Builds the {@link PathFilter} from the {@link Options#getFilterFile() filter
+	 * file} and {@link Options#getExclude() exclude pattern}.
+	 * 
+	 * @return The filter, or <code>null</code> if neither was specified.
+	 * @throws IllegalArgumentException If a rule is malformed.
+	 */
+	private static PathFilter filter(Options options, Invocation invocation) throws IOException {
+		PathFilter filter = null;
+		if (options.getFilterFile() != null)
+			filter = PathFilter.read(invocation.file(options.getFilterFile()), Options::parseSize);
+		if (options.getExclude() != null) {
+			if (filter == null)
+				filter = new PathFilter(Options::parseSize);
+			filter.add("exclude " + options.getExclude());
+		}
+		return filter;
+	}
+
+	/**
+	 * Processes the files specified as arguments, then watches them for changes
+	 * until the program is killed.
+	 */
+	private static void watch(DirectoryProcessor processor, CLIParams flags, Options options,
+			Invocation invocation) {
+		PathFilter filter;
+		try {
+			filter = filter(options, invocation);
+		} catch (IOException | IllegalArgumentException e) {
+			invocation.getLogger().failure("FLTR", "Failed to read the filter rules. Nothing was processed. [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+			return;
+		}
+		DirectoryWatcher watcher;
+		try {
+			watcher = new DirectoryWatcher(processor, options.getSettleDelay(), invocation.getLogger(), filter);
+		} catch (IOException e) {
+			invocation.getLogger().failure("WTCH",
+					"Failed to start watching for changes. [Err msg: " + e.getLocalizedMessage() + ']');
+			return;
+		}
+		for (String path : flags.getUnnamed())
+			watcher.add(invocation.file(path));
+		watcher.run();
+	}
+
+	private static void process0(DirectoryProcessor processor, CLIParams flags, Options options,
+			Invocation invocation) {
+		processor.process(JavaTools.addAll(flags.getUnnamed(), invocation::file,
+				new ArrayList<>(flags.getUnnamed().size())));
+		if (options.getFileList() != null) {
+			boolean stdin = options.getFileList().equals("-");
+			if (stdin && invocation.getIn() == null) {
+				invocation.getLogger().failure("FLST",
+						"A file list can't be read from standard input here. Specify the path of the file list instead.");
+				return;
+			}
+			try (PathListIterator list = new PathListIterator(
+					stdin ? invocation.getIn() : new FileInputStream(invocation.file(options.getFileList())),
+					options.isNullDelimited(), invocation::file)) {
+				processor.process(list);
+			} catch (IOException | UncheckedIOException e) {
+				invocation.getLogger().failure("FLST", "Failed to read the file list " + options.getFileList()
+						+ ". [Err msg: " + e.getLocalizedMessage() + ']');
+			}
+		}
 	}
 
 	public static void genkeys(Options options) {
-		SecureRandom sr;
+		genkeys(options, Invocation.local());
+	}
+
+	private static void genkeys(Options options, Invocation invocation) {
+		Writer out = new BufferedWriter(new OutputStreamWriter(invocation.getOut()), 65536);
 		try {
-			sr = SecureRandom.getInstanceStrong();
-		} catch (NoSuchAlgorithmException e) {
-			System.err.println(
-					"This Java implementation is non-compliant and does not have a strong secure random number generator algorithm. Using a plain secure random number generator instead.");
-			sr = new SecureRandom();
-		}
-		char[] x = new char[options.getKeygenSize()];
-		for (int i = 0; i < x.length; i++)
-			x[i] = options.getKeyCharset().get(sr.nextInt(options.getKeyCharset().size()));
-		System.out.println(new String(x));
+			new KeyGenerator(KeyGenerator.createRandom(options.getKey()), options.getKeyCharset()).generate(out,
+					options.getKeygenCount(), options.getKeygenSize(), options.isNullDelimited() ? '\0' : '\n');
+		} catch (IOException e) {
+			invocation.getLogger().failure("KGEN",
+					"Failed to write the generated keys. [Err msg: " + e.getLocalizedMessage() + ']');
+		}
 	}
 
 }
@@ -0,0 +1,133 @@
+package pala.tools.fenc;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.BufferPool;
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.Sharding;
+
+/**
+ * <p>
+ * The environment that a run of the program takes place in: where its messages
+ * and output go, where its input comes from, what relative paths are resolved
+ * against, how keys are derived, and, if the job is split between several
+ * processes, which share of it this run takes on. An invocation may also
+ * carry a {@link BufferPool} shared with other runs.
+ * </p>
+ * <p>
+ * A run from the command line uses the {@link #local() local} invocation. Each
+ * job sent to a {@link Daemon} gets an invocation of its own, which sends
+ * everything back to the client that sent the job.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class Invocation {
+
+	private final Path workingDirectory;
+	private final MessageLogger logger;
+	private final OutputStream out;
+	private final InputStream in;
+	private final Function<String, CipherKey> keys;
+	private final Sharding sharding;
+	private final BufferPool pool;
+
+	/**
+	 * @param workingDirectory The directory that relative paths are resolved
+	 *                         against, or <code>null</code> to leave them
+	 *                         relative to the process's working directory.
+	 * @param logger           The logger for all messages.
+	 * @param out              Where raw output (generated keys) is written.
+	 * @param in               Where a file list of <code>-</code> is read from,
+	 *                         or <code>null</code> if there is no such input.
+	 * @param keys             Derives the {@link CipherKey} for a key string.
+	 * @param pool             The {@link BufferPool} that the run takes its
+	 *                         buffers from, or <code>null</code> to give it a
+	 *                         pool of its own, sized by its options.
+	 */
+	Invocation(Path workingDirectory, MessageLogger logger, OutputStream out, InputStream in,
+			Function<String, CipherKey> keys, BufferPool pool) {
+		this(workingDirectory, logger, out, in, keys, null, pool);
+	}
+
+	private Invocation(Path workingDirectory, MessageLogger logger, OutputStream out, InputStream in,
+			Function<String, CipherKey> keys, Sharding sharding, BufferPool pool) {
+		this.workingDirectory = workingDirectory;
+		this.logger = logger;
+		this.out = out;
+		this.in = in;
+		this.keys = keys;
+		this.sharding = sharding;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return A copy of this invocation whose messages go to the specified
+	 *         logger.
+	 */
+	Invocation withLogger(MessageLogger logger) {
+		return new Invocation(workingDirectory, logger, out, in, keys, sharding, pool);
+	}
+
+	/**
+	 * @return A copy of this invocation that only processes the files that the
+	 *         specified {@link Sharding} gives it.
+	 */
+	Invocation withSharding(Sharding sharding) {
+		return new Invocation(workingDirectory, logger, out, in, keys, sharding, pool);
+	}
+
+	/**
+	 * @return The invocation for running from the command line, which uses the
+	 *         standard streams and the process's working directory.
+	 */
+	static Invocation local() {
+		return new Invocation(null, MessageLogger.simpleLogger(), System.out, System.in, CipherKey::new, null);
+	}
+
+	MessageLogger getLogger() {
+		return logger;
+	}
+
+	OutputStream getOut() {
+		return out;
+	}
+
+	InputStream getIn() {
+		return in;
+	}
+
+	/**
+	 * @return The {@link Sharding} that decides which files this invocation
+	 *         processes, or <code>null</code> if it processes them all.
+	 */
+	Sharding getSharding() {
+		return sharding;
+	}
+
+	/**
+	 * @return The {@link BufferPool} shared with other runs, or <code>null</code>
+	 *         if the run should create its own.
+	 */
+	BufferPool getPool() {
+		return pool;
+	}
+
+	CipherKey getKey(String key) {
+		return keys.apply(key);
+	}
+
+	/**
+	 * Resolves a path given in the arguments against the working directory.
+	 */
+	File file(String path) {
+		return workingDirectory == null ? new File(path) : workingDirectory.resolve(path).toFile();
+	}
+
+}
@@ -46,6 +46,19 @@ public interface KeyCharset {
 	 */
 	char get(int val) throws IndexOutOfBoundsException;
 
+	/**
+	 * Copies the characters of this {@link KeyCharset}, in order, into a new
+	 * array, so that they can be indexed without going through {@link #get(int)}.
+	 * 
+	 * @return The array of characters.
+	 */
+	default char[] toArray() {
+		char[] arr = new char[size()];
+		for (int i = 0; i < arr.length; i++)
+			arr[i] = get(i);
+		return arr;
+	}
+
 	static KeyCharset from(char... arr) {
 		return from(arr.length, a -> arr[a]);
 	}
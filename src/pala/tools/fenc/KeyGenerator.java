@@ -0,0 +1,111 @@
+package pala.tools.fenc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * <p>
+ * Generates random keys from a {@link KeyCharset}, in bulk.
+ * </p>
+ * <p>
+ * Random bytes are drawn from the generator in large batches and mapped onto
+ * the charset by rejection sampling: a byte is only used if it falls below the
+ * largest multiple of the charset's size that fits in a byte, so every
+ * character is equally likely. The charset is copied into an array up front so
+ * that sampling a character is a single array access.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class KeyGenerator {
+
+	private static final int BATCH_SIZE = 8192;
+
+	private final SecureRandom random;
+	private final char[] charset;
+	private final int limit;
+	private final byte[] batch = new byte[BATCH_SIZE];
+	private int pos = BATCH_SIZE;
+
+	public KeyGenerator(SecureRandom random, KeyCharset charset) {
+		this.random = random;
+		this.charset = charset.toArray();
+		limit = this.charset.length > 256 ? 0 : 256 - 256 % this.charset.length;
+	}
+
+	/**
+	 * <p>
+	 * Creates a non-blocking, 256-bit strength
+	 * {@link DrbgParameters DRBG} {@link SecureRandom}. It is seeded once, from
+	 * the system's entropy source, and then generates without waiting on further
+	 * entropy, unlike {@link SecureRandom#getInstanceStrong()} which may block for
+	 * a long time on entropy-starved machines.
+	 * </p>
+	 *
+	 * @param personalization A string that is mixed into the generator's seed, or
+	 *                        <code>null</code>.
+	 * @return The {@link SecureRandom}.
+	 */
+	public static SecureRandom createRandom(String personalization) {
+		try {
+			return SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(256,
+					DrbgParameters.Capability.RESEED_ONLY,
+					personalization == null ? null : personalization.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println(
+					"This Java implementation does not support a DRBG secure random number generator. Using a plain secure random number generator instead.");
+			return new SecureRandom();
+		}
+	}
+
+	private char nextChar() {
+		if (limit == 0)
+			return charset[random.nextInt(charset.length)];
+		while (true) {
+			if (pos == BATCH_SIZE) {
+				random.nextBytes(batch);
+				pos = 0;
+			}
+			int b = batch[pos++] & 0xFF;
+			if (b < limit)
+				return charset[b % charset.length];
+		}
+	}
+
+	/**
+	 * Fills the provided array with random characters from the charset.
+	 *
+	 * @param key The array to fill.
+	 */
+	public void generate(char[] key) {
+		for (int i = 0; i < key.length; i++)
+			key[i] = nextChar();
+	}
+
+	/**
+	 * Generates the specified number of keys and writes each, followed by the
+	 * delimiter, to the provided {@link Writer}. The {@link Writer} is flushed but
+	 * not closed.
+	 *
+	 * @param out       The destination.
+	 * @param count     The number of keys to generate.
+	 * @param size      The length of each key.
+	 * @param delimiter The character written after each key.
+	 * @throws IOException If writing fails.
+	 */
+	public void generate(Writer out, long count, int size, char delimiter) throws IOException {
+		char[] key = new char[size];
+		for (long i = 0; i < count; i++) {
+			generate(key);
+			out.write(key);
+			out.write(delimiter);
+		}
+		out.flush();
+	}
+
+}
@@ -3,6 +3,9 @@ package pala.tools.fenc;
 import java.security.SecureRandom;
 
 import pala.libs.generic.parsers.cli.CLIParams;
+import pala.tools.fenc.processing.CipherProcessor.Durability;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.Traversal.SymlinkPolicy;
 import static pala.tools.fenc.KeyCharset.*;
 
 public class Options {
@@ -33,6 +36,50 @@ public class Options {
 		 * </p>
 		 */
 		ENCRYPT, DECRYPT, HASH,
+		/**
+		 * <p>
+		 * Checks files encrypted in the {@link FileFormat#AUTHENTICATED authenticated
+		 * format} for corruption, without writing anything. This mode expects a
+		 * {@link Options#getKey() key} to be specified, and each file's header is
+		 * checked against it before the authentication tag of every chunk in the file
+		 * is checked. Corrupt files are reported along with the offsets of their
+		 * corrupt chunks.
+		 * </p>
+		 * <p>
+		 * The chunks of each file are checked in parallel by
+		 * {@link Options#getChunkWorkers() chunk workers}. Multiple files can be
+		 * verified at once using {@link Options#getSmallWorkers() worker lanes}.
+		 * </p>
+		 */
+		VERIFY,
+		/**
+		 * <p>
+		 * Re-encrypts files encrypted with the {@link Options#getKey() key} so that
+		 * they're encrypted with the {@link Options#getNewKey() new key} instead. Each
+		 * file is decrypted and encrypted again in a single pass, in memory, so the
+		 * plaintext is never written to disk. Files are re-encrypted into the selected
+		 * {@link Options#getFormat() format}, whatever format they were in before.
+		 * Files already encrypted with the new key are skipped.
+		 * </p>
+		 * <p>
+		 * This mode is enabled when <code>--new-key</code> or <code>-nk</code> is
+		 * specified.
+		 * </p>
+		 */
+		REKEY,
+		/**
+		 * <p>
+		 * Combines the {@link Options#getSummary() summaries} written by the
+		 * processes of a sharded job, which are given in place of files to process.
+		 * The combined number of files and every failure are printed, and shards
+		 * without a summary are reported. If a summary file is also specified, the
+		 * combined summary is written to it.
+		 * </p>
+		 * <p>
+		 * This mode is enabled by <code>--merge</code> or <code>-mg</code>.
+		 * </p>
+		 */
+		MERGE,
 		/**
 		 * <p>
 		 * This mode is used solely to generate secure keys. It utilizes the specified
@@ -48,16 +95,54 @@ public class Options {
 		 * This mode creates a new {@link SecureRandom} and generates the specified
 		 * number of random characters with it. The random character set can be
 		 * </p>
+		 * <p>
+		 * If <code>-kg</code> is given a value, e.g. <code>-kg=1000</code>, that many
+		 * keys are generated, each followed by a newline (or a NUL character if
+		 * {@link Options#isNullDelimited()} is enabled).
+		 * </p>
 		 */
 		KEYGEN
 	}
 
-	private final String key;
+	/**
+	 * The largest {@link #getBufferSize() buffer size} allowed. The engines
+	 * allocate a little more than the buffer size, which must still fit in an
+	 * <code>int</code>.
+	 */
+	public static final int MAX_BUFFER_SIZE = 1 << 30;
+
+	private final String key, newKey, keyFile;
 	private final boolean suppressSuccessMessages;
 	private final int bufferSize, notificationCycleTime;
 	private Mode mode;
 	private final int keygenSize;
+	private long keygenCount = 1;
 	private final KeyCharset keyCharset;
+	private final String journal;
+	private final boolean resume;
+	private final String fileList;
+	private final boolean nullDelimited;
+	private final int smallWorkers, largeWorkers;
+	private final long largeFileSize;
+	private final FileFormat format;
+	private final int chunkWorkers;
+	private final boolean directIO;
+	private final long maxRate, maxMemory;
+	private final boolean poolStats;
+	private final int maxFiles;
+	private final String throttleFile;
+	private final String daemonSocket, socket;
+	private final boolean watch;
+	private final long settleDelay;
+	private final SymlinkPolicy symlinks;
+	private final String filterFile, exclude;
+	private final int shardIndex, shardCount;
+	private final String claimDirectory, worker, summary;
+	private final String output;
+	private final boolean preserve;
+	private final Durability durability;
+	private final int groupFiles;
+	private final long groupDelay;
 
 	private void setMode(Mode mode) {
 		if (this.mode != null)
@@ -65,14 +150,39 @@ public class Options {
 		this.mode = mode;
 	}
 
+	/**
+	 * Parses the options from the specified command line arguments.
+	 * 
+	 * @param params The arguments.
+	 * @throws IllegalArgumentException If the arguments are malformed or
+	 *                                  inconsistent. The exception's message
+	 *                                  describes the problem to the user.
+	 */
 	public Options(CLIParams params) {
 		key = params.readString((String) null, "-k", "--key");
+		keyFile = params.readString((String) null, "-kf", "--key-file");
 		if (params.checkFlag(false, "--dec", "--decrypt", "-d"))
 			mode = Mode.DECRYPT;
 		if (params.checkFlag(false, "-h", "--hash"))
-			setMode(Mode.DECRYPT);
-		if (params.checkFlag(false, "-kg", "--keygen"))
-			setMode(Mode.KEYGEN);
+			setMode(Mode.HASH);
+		if (params.checkFlag(false, "-v", "--verify"))
+			setMode(Mode.VERIFY);
+		newKey = params.readString((String) null, "-nk", "--new-key");
+		if (newKey != null)
+			setMode(Mode.REKEY);
+		if (params.checkFlag(false, "--merge", "-mg"))
+			setMode(Mode.MERGE);
+		{
+			String kg = params.readString((String) null, "-kg", "--keygen");
+			if (kg != null)
+				try {
+					keygenCount = Long.parseLong(kg);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(kg + " is not a valid number of keys to generate.");
+				}
+			if (kg != null || params.checkFlag(false, "-kg", "--keygen"))
+				setMode(Mode.KEYGEN);
+		}
 		{
 			String kc = params.readString((String) null, "--key-charset", "-kc");
 			if (kc == null)
@@ -110,30 +220,178 @@ public class Options {
 					keyCharset = ALPHANUM_AND_SYMBOLS;
 					break;
 				default:
-					System.err.println(kc
+					throw new IllegalArgumentException(kc
 							+ " is not a valid key charset. Options are:\n\tlowercase, lower, uppercase, upper, number, digits, alphanumeric, alphanum, letters-and-numbers, symbol, extra-symbols, extended-symbols, alphanum-and-symbols, all");
-					System.exit(0);
-					keyCharset = null;
 				}
-				setMode(Mode.KEYGEN);
+				if (mode != Mode.KEYGEN)
+					setMode(Mode.KEYGEN);
 			}
 		}
 		bufferSize = params.readInt(65536, "--buffer-size", "-bs");
+		if (bufferSize < 1 || bufferSize > MAX_BUFFER_SIZE)
+			throw new IllegalArgumentException(
+					"The buffer size must be between 1 and " + MAX_BUFFER_SIZE + " bytes (1G).");
 
 		suppressSuccessMessages = (notificationCycleTime = params.readInt(-1, "--notification-time", "-nt")) > 0
 				|| params.checkFlag(false, "--quiet", "-q", "--suppress-success-messages", "-s");
 		keygenSize = params.readInt(10, "-ks", "--keygen-size", "--key-size");
+		journal = params.readString((String) null, "--journal", "-j");
+		resume = params.checkFlag(false, "--resume", "-r");
+		fileList = params.readString((String) null, "--file-list", "-fl");
+		nullDelimited = params.checkFlag(false, "--null-delimited", "-0");
+		{
+			int sw = params.readInt(0, "--small-workers", "-sw"), lw = params.readInt(0, "--large-workers", "-lw");
+			// If only one lane is given workers, the other still needs one to make
+			// progress.
+			smallWorkers = sw == 0 && lw != 0 ? 1 : sw;
+			largeWorkers = lw == 0 && sw != 0 ? 1 : lw;
+		}
+		format = params.checkFlag(false, "--sparse", "-sp") ? FileFormat.SPARSE
+				: params.checkFlag(false, "--authenticated", "-a") ? FileFormat.AUTHENTICATED : FileFormat.CBC;
+		chunkWorkers = params.readInt(Runtime.getRuntime().availableProcessors(), "--chunk-workers", "-cw");
+		directIO = params.checkFlag(false, "--direct-io", "-dio");
+		largeFileSize = parseSize(params.readString("64M", "--large-file-size", "-lfs"));
+		maxRate = parseSize(params.readString("0", "--max-rate", "-mr"));
+		{
+			String mm = params.readString((String) null, "--max-memory", "-mm");
+			// Direct buffers are limited to the maximum heap size by default.
+			maxMemory = mm == null ? Runtime.getRuntime().maxMemory() / 4 : parseSize(mm);
+		}
+		poolStats = params.checkFlag(false, "--pool-stats", "-ps");
+		maxFiles = params.readInt(0, "--max-files", "-mf");
+		if (maxFiles < 0)
+			throw new IllegalArgumentException("The file rate limit can't be negative.");
+		throttleFile = params.readString((String) null, "--throttle-file", "-tf");
+		daemonSocket = params.readString((String) null, "--daemon", "-dmn");
+		socket = params.readString((String) null, "--socket", "-sk");
+		watch = params.checkFlag(false, "--watch", "-w");
+		settleDelay = params.readInt(2000, "--settle-delay", "-sd");
+		filterFile = params.readString((String) null, "--filter-file", "-ff");
+		{
+			String sh = params.readString("1/1", "--shard", "-sh");
+			int slash = sh.indexOf('/');
+			try {
+				shardIndex = Integer.parseInt(sh.substring(0, slash)) - 1;
+				shardCount = Integer.parseInt(sh.substring(slash + 1));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException(sh + " is not a valid shard. Shards are given as i/N, e.g. 2/4.");
+			}
+			if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+				throw new IllegalArgumentException(
+						sh + " is not a valid shard. The shard number must be from 1 to the number of shards.");
+		}
+		claimDirectory = params.readString((String) null, "--claim-dir", "-cd");
+		worker = params.readString((String) null, "--worker", "-wk");
+		if (worker != null && claimDirectory == null)
+			throw new IllegalArgumentException("A worker name can only be used with a claim directory.");
+		if (worker != null && (worker.isEmpty() || worker.contains("\n") || worker.contains("\t")))
+			throw new IllegalArgumentException("A worker name must be non-empty and on one line.");
+		summary = params.readString((String) null, "--summary", "-sum");
+		exclude = params.readString((String) null, "--exclude", "-x");
+		output = params.readString((String) null, "--output", "-o");
+		preserve = params.checkFlag(false, "--preserve", "-p");
+		{
+			String du = params.readString("none", "--durability", "-du");
+			try {
+				durability = Durability.valueOf(du.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(du + " is not a valid durability. Options are:\n\tnone, file, group");
+			}
+		}
+		groupFiles = params.readInt(256, "--group-files", "-gf");
+		groupDelay = params.readInt(100, "--group-delay", "-gd");
+		if (groupFiles < 1 || groupDelay < 1)
+			throw new IllegalArgumentException("The group size and delay must be at least 1.");
+		{
+			String sl = params.readString("follow", "--symlinks", "-sl");
+			try {
+				symlinks = SymlinkPolicy.valueOf(sl.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(sl + " is not a valid symlink policy. Options are:\n\tskip, follow, once");
+			}
+		}
+		if (resume && journal == null)
+			throw new IllegalArgumentException("A --journal file is required to resume a run.");
+		// The daemon takes its jobs' options over its socket, and a client's options
+		// are checked by the daemon it sends them to.
+		if (daemonSocket != null || socket != null)
+			return;
+
+		if (keyFile != null && mode != Mode.DECRYPT)
+			throw new IllegalArgumentException("A key file can only be used to decrypt.");
+		if (output != null && (watch || mode == Mode.HASH || mode == Mode.VERIFY || mode == Mode.KEYGEN
+				|| mode == Mode.MERGE))
+			throw new IllegalArgumentException(
+					"An output directory can only be used to encrypt, decrypt, or rekey, and not in watch mode.");
+		if (preserve && output == null)
+			throw new IllegalArgumentException("--preserve requires an --output directory.");
+		if (isSharded() && (watch || mode == Mode.KEYGEN || mode == Mode.MERGE))
+			throw new IllegalArgumentException("Sharding can't be used in watch, keygen, or merge mode.");
 
 		// A mode should be specified here. The default mode is encrypt.
 		// Encryption requires a key.
 
 		if (mode == null) {
-			if (key == null) {
-				System.err.println("A key is required to encrypt.");
-				System.exit(0);
-			}
+			if (key == null)
+				throw new IllegalArgumentException("A key is required to encrypt.");
 			mode = Mode.ENCRYPT;
+		} else if (mode == Mode.VERIFY && key == null)
+			throw new IllegalArgumentException("A key is required to verify.");
+		else if (mode == Mode.DECRYPT && key == null && keyFile == null)
+			throw new IllegalArgumentException("A key or key file is required to decrypt.");
+		else if (mode == Mode.REKEY && key == null)
+			throw new IllegalArgumentException("The old key is required to rekey.");
+	}
+
+	/**
+	 * Parses a size in bytes, optionally followed by one of the (binary) suffixes
+	 * <code>K</code>, <code>M</code>, <code>G</code> or <code>T</code>, e.g.
+	 * <code>64M</code>.
+	 * 
+	 * @param size The size string.
+	 * @return The number of bytes.
+	 * @throws IllegalArgumentException If the size is malformed.
+	 */
+	static long parseSize(String size) {
+		try {
+			return toBytes(size);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(size
+					+ " is not a valid size. Sizes are a non-negative number of bytes optionally followed by K, M, G or T. [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Parses a size like {@link #parseSize(String)}, but throws the underlying
+	 * {@link NumberFormatException} if the size is malformed.
+	 * 
+	 * @param size The size string.
+	 * @return The number of bytes.
+	 * @throws NumberFormatException If the size is malformed, negative, or too
+	 *                               large to be represented.
+	 */
+	@SuppressWarnings("fallthrough")
+	static long toBytes(String size) throws NumberFormatException {
+		int shift = 0;
+		// Each suffix falls through to the ones below it.
+		switch (size.isEmpty() ? ' ' : Character.toUpperCase(size.charAt(size.length() - 1))) {
+		case 'T':
+			shift += 10;
+		case 'G':
+			shift += 10;
+		case 'M':
+			shift += 10;
+		case 'K':
+			shift += 10;
+			size = size.substring(0, size.length() - 1);
 		}
+		long n = Long.parseLong(size.trim());
+		if (n < 0)
+			throw new NumberFormatException("Sizes can't be negative.");
+		if (n > Long.MAX_VALUE >> shift)
+			throw new NumberFormatException("The size is too large.");
+		return n << shift;
 	}
 
 	/**
@@ -151,6 +409,567 @@ public class Options {
 		return getNotificationCycleTime() > 0;
 	}
 
+	/**
+	 * <p>
+	 * The path of the write-ahead journal that encryption and decryption record
+	 * each file's progress to. If the run is killed, it can be continued with
+	 * {@link #isResume() resume}.
+	 * </p>
+	 * <p>
+	 * Unless resuming, the journal file is overwritten when the run starts.
+	 * </p>
+	 * 
+	 * @flag --journal -j
+	 * @return The journal path, or <code>null</code> if journaling is disabled.
+	 */
+	public String getJournal() {
+		return journal;
+	}
+
+	/**
+	 * <code>true</code> if the run recorded in the {@link #getJournal() journal}
+	 * should be continued. Files that the journal records as committed are skipped
+	 * without being read, and files that were interrupted part way through are
+	 * repaired before processing begins.
+	 * 
+	 * @flag --resume -r
+	 * @return Whether a previous run is being resumed.
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * <p>
+	 * The location of a list of paths to process, in addition to any specified
+	 * directly as arguments. The value <code>-</code> reads the list from standard
+	 * in. Paths are separated by newlines, or by NUL characters if
+	 * {@link #isNullDelimited()} is enabled.
+	 * </p>
+	 * <p>
+	 * The list is read lazily while files are processed, so it is not bounded by
+	 * the maximum command line length or by memory.
+	 * </p>
+	 * 
+	 * @flag --file-list -fl
+	 * @return The path of the file list, <code>-</code>, or <code>null</code> if
+	 *         no list was specified.
+	 */
+	public String getFileList() {
+		return fileList;
+	}
+
+	/**
+	 * <code>true</code> if entries in the {@link #getFileList() file list} are
+	 * separated by NUL characters (as output by <code>find -print0</code>) rather
+	 * than newlines.
+	 * 
+	 * @flag --null-delimited -0
+	 * @return Whether NUL is the delimiter.
+	 */
+	public boolean isNullDelimited() {
+		return nullDelimited;
+	}
+
+	/**
+	 * <p>
+	 * The number of worker threads that process files smaller than the
+	 * {@link #getLargeFileSize() large file size}. If either this or
+	 * {@link #getLargeWorkers()} is specified, files are processed concurrently
+	 * in two lanes by size, and the throughput of each lane is reported at the
+	 * end. Otherwise, files are processed one at a time, in order, on the main
+	 * thread.
+	 * </p>
+	 * 
+	 * @flag --small-workers -sw
+	 * @return The number of small-lane workers, or <code>0</code> if lanes are
+	 *         disabled.
+	 */
+	public int getSmallWorkers() {
+		return smallWorkers;
+	}
+
+	/**
+	 * The number of worker threads that process files at or above the
+	 * {@link #getLargeFileSize() large file size}. The largest waiting file is
+	 * always started first. See {@link #getSmallWorkers()}.
+	 * 
+	 * @flag --large-workers -lw
+	 * @return The number of large-lane workers, or <code>0</code> if lanes are
+	 *         disabled.
+	 */
+	public int getLargeWorkers() {
+		return largeWorkers;
+	}
+
+	public boolean isLaneSchedulingEnabled() {
+		return smallWorkers != 0;
+	}
+
+	/**
+	 * The size, in bytes, at and above which a file is processed in the large
+	 * lane.
+	 * 
+	 * @flag --large-file-size -lfs
+	 * @defaultValue 64M
+	 * @return The large file threshold.
+	 */
+	public long getLargeFileSize() {
+		return largeFileSize;
+	}
+
+	/**
+	 * <p>
+	 * The {@link FileFormat} that files are encrypted into. This is
+	 * {@link FileFormat#CBC} unless <code>--authenticated</code> is specified, in
+	 * which case it is {@link FileFormat#AUTHENTICATED}: files are encrypted in
+	 * chunks of {@link #getBufferSize() buffer size} bytes that each carry an
+	 * authentication tag, so that they can later be checked in
+	 * {@link Mode#VERIFY verify mode}, and so that decryption fails instead of
+	 * producing garbage if they are corrupted.
+	 * </p>
+	 * <p>
+	 * If <code>--sparse</code> is specified, it is {@link FileFormat#SPARSE}: the
+	 * authenticated format, but with chunks that are entirely zero recorded by
+	 * count instead of encrypted, so that sparse files (e.g. disk images) take up
+	 * only as much space encrypted as the data in them. Those chunks are restored
+	 * as holes on decryption.
+	 * </p>
+	 * <p>
+	 * Decryption detects the format of each file, so this only matters when
+	 * encrypting.
+	 * </p>
+	 * 
+	 * @flag --authenticated -a --sparse -sp
+	 * @return The format to encrypt into.
+	 */
+	public FileFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * The number of threads used to check the chunks of each file in parallel in
+	 * {@link Mode#VERIFY verify mode}.
+	 * 
+	 * @flag --chunk-workers -cw
+	 * @defaultValue The number of available processors.
+	 * @return The number of chunk workers.
+	 */
+	public int getChunkWorkers() {
+		return chunkWorkers;
+	}
+
+	/**
+	 * <p>
+	 * Whether files are read and written with direct I/O, bypassing the operating
+	 * system's page cache, so that processing many files doesn't evict the cached
+	 * data of other programs. Files on file systems that don't support direct I/O
+	 * are processed normally.
+	 * </p>
+	 * 
+	 * @flag --direct-io -dio
+	 * @return <code>true</code> if direct I/O should be used.
+	 */
+	public boolean isDirectIO() {
+		return directIO;
+	}
+
+	/**
+	 * The maximum number of bytes read and written per second, across all files
+	 * and workers, or <code>0</code> for no limit. Accepts the same suffixes as
+	 * {@link #getLargeFileSize()}.
+	 * 
+	 * @flag --max-rate -mr
+	 * @defaultValue 0
+	 * @return The byte rate limit.
+	 */
+	public long getMaxRate() {
+		return maxRate;
+	}
+
+	/**
+	 * <p>
+	 * The most memory that the buffers used to process files may take up in
+	 * total, across all workers. Buffers come from a shared pool and are reused
+	 * from file to file. Once the budget is used up, workers wait for memory to be
+	 * freed before starting another file. Accepts the same suffixes as
+	 * {@link #getLargeFileSize()}.
+	 * </p>
+	 * <p>
+	 * A daemon takes its budget from the options it is started with and shares
+	 * it between all of its jobs, so the jobs' own budgets are ignored.
+	 * </p>
+	 * <p>
+	 * The number of buffers reused and allocated, and the time spent waiting for
+	 * memory, are reported at the end if {@link #isPoolStats() pool stats} are
+	 * enabled.
+	 * </p>
+	 * 
+	 * @flag --max-memory -mm
+	 * @defaultValue A quarter of the maximum heap size.
+	 * @return The memory budget, in bytes.
+	 */
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * Whether to report how the {@link #getMaxMemory() buffer pool} was used
+	 * (buffers reused and allocated, and time spent waiting for memory) once the
+	 * run ends. Meant for tuning the memory budget.
+	 * 
+	 * @flag --pool-stats -ps
+	 * @defaultValue false
+	 * @return <code>true</code> if the pool's statistics should be printed.
+	 */
+	public boolean isPoolStats() {
+		return poolStats;
+	}
+
+	/**
+	 * The maximum number of files started per second, or <code>0</code> for no
+	 * limit.
+	 * 
+	 * @flag --max-files -mf
+	 * @defaultValue 0
+	 * @return The file rate limit.
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	/**
+	 * <p>
+	 * A file that is watched for changes to the rate limits while the program
+	 * runs. Each line of the file is either <code>rate=&lt;size&gt;</code> or
+	 * <code>files=&lt;count&gt;</code>, which replace {@link #getMaxRate()} and
+	 * {@link #getMaxFiles()} respectively. Lines starting with <code>#</code> are
+	 * ignored.
+	 * </p>
+	 * 
+	 * @flag --throttle-file -tf
+	 * @return The path of the control file, or <code>null</code> if none was
+	 *         specified.
+	 */
+	public String getThrottleFile() {
+		return throttleFile;
+	}
+
+	/**
+	 * @return <code>true</code> if I/O should go through a
+	 *         {@link pala.tools.fenc.processing.Throttle}.
+	 */
+	public boolean isThrottled() {
+		return maxRate != 0 || maxFiles != 0 || throttleFile != null;
+	}
+
+	/**
+	 * <p>
+	 * The path of the Unix domain socket to listen on for jobs. If this is
+	 * specified, the program runs as a daemon that processes jobs sent to it by
+	 * {@link #getSocket() clients} until it is killed, and all other options are
+	 * ignored.
+	 * </p>
+	 * 
+	 * @flag --daemon -dmn
+	 * @return The socket path, or <code>null</code> if the program should not run
+	 *         as a daemon.
+	 */
+	public String getDaemonSocket() {
+		return daemonSocket;
+	}
+
+	/**
+	 * <p>
+	 * The path of the socket of a running {@link #getDaemonSocket() daemon}. If
+	 * this is specified, the program sends the rest of its arguments to the
+	 * daemon as a job, rather than processing them itself, and prints the
+	 * daemon's output.
+	 * </p>
+	 * 
+	 * @flag --socket -sk
+	 * @return The socket path, or <code>null</code> if the program should process
+	 *         files itself.
+	 */
+	public String getSocket() {
+		return socket;
+	}
+
+	/**
+	 * <p>
+	 * Whether to keep running after the specified files have been processed,
+	 * watching the specified directories (and any directories created in them)
+	 * and processing each file that is created or modified in them once it has
+	 * {@link #getSettleDelay() settled}. Files are processed one at a time, on
+	 * the watching thread, so worker lanes are not used.
+	 * </p>
+	 * 
+	 * @flag --watch -w
+	 * @return <code>true</code> if watch mode is enabled.
+	 */
+	public boolean isWatch() {
+		return watch;
+	}
+
+	/**
+	 * The number of milliseconds that a file must go without changing, in
+	 * {@link #isWatch() watch mode}, before it is processed, so that files that
+	 * are still being written aren't processed.
+	 * 
+	 * @flag --settle-delay -sd
+	 * @defaultValue 2000
+	 * @return The settle delay.
+	 */
+	public long getSettleDelay() {
+		return settleDelay;
+	}
+
+	/**
+	 * <p>
+	 * How symbolic links found in directories are treated: <code>skip</code>
+	 * ignores them, <code>follow</code> follows them (except for links that would
+	 * lead back into a directory containing them), and <code>once</code> follows
+	 * them but walks each directory only once. Paths given as arguments are always
+	 * followed.
+	 * </p>
+	 * <p>
+	 * Whatever the policy, each file is processed only once, even if it is
+	 * reached through several hard links, symbolic links, or overlapping
+	 * arguments. This does not apply in {@link #isWatch() watch mode}.
+	 * </p>
+	 * 
+	 * @flag --symlinks -sl
+	 * @defaultValue follow
+	 * @return The {@link SymlinkPolicy}.
+	 */
+	public SymlinkPolicy getSymlinks() {
+		return symlinks;
+	}
+
+	/**
+	 * <p>
+	 * The shard of the job that this process takes on, as <code>i/N</code>: each
+	 * file is given to one of <code>N</code> shards by a stable hash of its path
+	 * relative to the argument it was found under (or its path as given, for files
+	 * given directly or in a file list), and only the files of shard
+	 * <code>i</code> (counting from <code>1</code>) are processed. Running every
+	 * shard, on any number of hosts with the tree mounted anywhere, processes
+	 * every file once.
+	 * </p>
+	 * 
+	 * @flag --shard -sh
+	 * @defaultValue 1/1
+	 * @return The index of the shard, counting from <code>0</code>.
+	 */
+	public int getShardIndex() {
+		return shardIndex;
+	}
+
+	/**
+	 * @flag --shard -sh
+	 * @defaultValue 1/1
+	 * @return The number of shards the job is split into.
+	 * @see #getShardIndex()
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * <p>
+	 * A directory, shared by every process working on the job, that files are
+	 * claimed in just before they're processed. Only the process that claims a
+	 * file first processes it, so processes can be started on any number of
+	 * hosts and each takes on as many files as it can. The directory should be
+	 * empty when a job starts. May be combined with {@link #getShardIndex()
+	 * shards}.
+	 * </p>
+	 * <p>
+	 * A claim held by a process that has died (on the same host) is taken over by
+	 * the next process that reaches the file, and a process with a
+	 * {@link #getWorker() worker name} takes back the claims made under its name.
+	 * </p>
+	 * 
+	 * @flag --claim-dir -cd
+	 * @return The path of the claim directory, or <code>null</code> if files
+	 *         aren't claimed.
+	 */
+	public String getClaimDirectory() {
+		return claimDirectory;
+	}
+
+	/**
+	 * A name for this process in the {@link #getClaimDirectory() claim directory},
+	 * which must be unique among the processes running at once. A process
+	 * restarted with the same name (e.g. on another host, or after a crash)
+	 * processes the files it had claimed before instead of leaving them to no
+	 * one.
+	 * 
+	 * @flag --worker -wk
+	 * @return The worker name, or <code>null</code> if claims are only made in the
+	 *         name of the process.
+	 */
+	public String getWorker() {
+		return worker;
+	}
+
+	/**
+	 * <code>true</code> if this process only takes on part of the job, because it
+	 * is one of several {@link #getShardCount() shards} or
+	 * {@link #getClaimDirectory() claims} files.
+	 */
+	public boolean isSharded() {
+		return shardCount > 1 || claimDirectory != null;
+	}
+
+	/**
+	 * A file that a summary of the run is written to: which shard it was, how many
+	 * files it took on and left to others, and every failure. The summaries of
+	 * every process of a sharded job can be combined in {@link Mode#MERGE merge
+	 * mode}.
+	 * 
+	 * @flag --summary -sum
+	 * @return The path of the summary file, or <code>null</code> if none is
+	 *         written.
+	 */
+	public String getSummary() {
+		return summary;
+	}
+
+	public boolean isMergeMode() {
+		return mode == Mode.MERGE;
+	}
+
+	/**
+	 * <p>
+	 * A directory that processed files are written to, instead of over the
+	 * originals. Each directory given as an argument is mirrored in a directory of
+	 * the same name in this directory, and files given directly are written to
+	 * this directory under their own names. If two arguments have the same name,
+	 * the files of the second are not processed. Files are written
+	 * straight to their destination, without a temporary file, and while the
+	 * next part of the file is being read, so reading and writing run at the same
+	 * time when the output is on another device.
+	 * </p>
+	 * <p>
+	 * This may only be used to encrypt, decrypt, or rekey, and not in
+	 * {@link #isWatch() watch mode}.
+	 * </p>
+	 * 
+	 * @flag --output -o
+	 * @return The output directory, or <code>null</code> to process files in
+	 *         place.
+	 */
+	public String getOutput() {
+		return output;
+	}
+
+	/**
+	 * Specifies that files written to the {@link #getOutput() output directory}
+	 * are given the modification and access times and the permissions of the
+	 * files they were written from.
+	 * 
+	 * @flag --preserve -p
+	 * @defaultValue <code>false</code>
+	 * @return Whether times and permissions are preserved.
+	 */
+	public boolean isPreserve() {
+		return preserve;
+	}
+
+	/**
+	 * <p>
+	 * How processed files are made durable before they are reported as
+	 * processed (and committed in the {@link #getJournal() journal}):
+	 * </p>
+	 * <ul>
+	 * <li><code>none</code>: files are never forced to disk, so files reported
+	 * shortly before a power loss may be lost.</li>
+	 * <li><code>file</code>: each file is forced to disk before it's reported,
+	 * along with its temporary copy before it's copied back, and the journal
+	 * after each step.</li>
+	 * <li><code>group</code>: files are forced to disk in groups of
+	 * {@link #getGroupFiles() group files} files, or after waiting for
+	 * {@link #getGroupDelay() group delay} milliseconds, and are only reported
+	 * once their group has been.</li>
+	 * </ul>
+	 * <p>
+	 * This only applies when encrypting, decrypting, or rekeying.
+	 * </p>
+	 * 
+	 * @flag --durability -du
+	 * @defaultValue none
+	 * @return The {@link Durability}.
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * The number of files that are forced to disk together under
+	 * {@link Durability#GROUP group} {@link #getDurability() durability}.
+	 * 
+	 * @flag --group-files -gf
+	 * @defaultValue 256
+	 * @return The group size.
+	 */
+	public int getGroupFiles() {
+		return groupFiles;
+	}
+
+	/**
+	 * The longest a file waits for the rest of its group before the group is
+	 * forced to disk anyway, under {@link Durability#GROUP group}
+	 * {@link #getDurability() durability}, in milliseconds.
+	 * 
+	 * @flag --group-delay -gd
+	 * @defaultValue 100
+	 * @return The group delay.
+	 */
+	public long getGroupDelay() {
+		return groupDelay;
+	}
+
+	/**
+	 * <p>
+	 * A file of include and exclude rules that decide which files and directories
+	 * found in directories are processed. Rules match globs or regular
+	 * expressions against names or relative paths, or compare sizes and
+	 * modification times; see {@link pala.tools.fenc.processing.PathFilter} for
+	 * the syntax. Excluded directories are skipped without being listed. How many
+	 * entries and bytes each exclude rule skipped is reported at the end.
+	 * </p>
+	 * <p>
+	 * Paths given as arguments are never filtered. In {@link #isWatch() watch
+	 * mode}, the rules also decide which files and directories created in the
+	 * watched directories are processed and watched.
+	 * </p>
+	 * 
+	 * @flag --filter-file -ff
+	 * @return The path of the filter file, or <code>null</code> if none was
+	 *         given.
+	 */
+	public String getFilterFile() {
+		return filterFile;
+	}
+
+	/**
+	 * A single exclude rule, e.g. <code>*.iso</code> or <code>size&gt;10G</code>,
+	 * written as it would be after <code>exclude</code> in a
+	 * {@link #getFilterFile() filter file}. It is checked after the filter file's
+	 * rules.
+	 * 
+	 * @flag --exclude -x
+	 * @return The exclude rule, or <code>null</code> if none was given.
+	 */
+	public String getExclude() {
+		return exclude;
+	}
+
+	public boolean isVerifyMode() {
+		return mode == Mode.VERIFY;
+	}
+
 	public KeyCharset getKeyCharset() {
 		return keyCharset;
 	}
@@ -159,6 +978,17 @@ public class Options {
 		return keygenSize;
 	}
 
+	/**
+	 * The number of keys to generate in {@link Mode#KEYGEN keygen mode}.
+	 * 
+	 * @flag --keygen -kg
+	 * @defaultValue 1
+	 * @return The number of keys.
+	 */
+	public long getKeygenCount() {
+		return keygenCount;
+	}
+
 	/**
 	 * Determines whether the program is in hash mode. In hash mode, the program
 	 * only hashes all the files it encounters; it does not encrypt or decrypt
@@ -203,6 +1033,47 @@ public class Options {
 		return key;
 	}
 
+	/**
+	 * <p>
+	 * Specifies a file of keys to decrypt with, one per line. Each file is
+	 * decrypted with whichever of these keys (or the {@link #getKey() key}, if
+	 * one is also given) it was encrypted with, which is found from the file's
+	 * header. Blank lines are ignored.
+	 * </p>
+	 * <p>
+	 * This may only be used in {@link Mode#DECRYPT decryption mode}.
+	 * </p>
+	 * 
+	 * @flag -kf --key-file
+	 * @return The path of the key file, or <code>null</code> if none was given.
+	 */
+	public String getKeyFile() {
+		return keyFile;
+	}
+
+	/**
+	 * Specifies the key that files are re-encrypted with in
+	 * {@link Mode#REKEY rekey mode}. The {@link #getKey() key} is then the key
+	 * they're currently encrypted with.
+	 * 
+	 * @flag -nk --new-key
+	 * @return The new key, or <code>null</code> if not rekeying.
+	 */
+	public String getNewKey() {
+		return newKey;
+	}
+
+	/**
+	 * <code>true</code> if files are being re-encrypted with a
+	 * {@link #getNewKey() new key}.
+	 * 
+	 * @flag -nk --new-key
+	 * @return <code>true</code> if {@link Mode#REKEY} is the selected mode.
+	 */
+	public boolean isRekeyMode() {
+		return mode == Mode.REKEY;
+	}
+
 	/**
 	 * <code>true</code> if the files specified when the app is launched should be
 	 * decrypted rather than encrypted.
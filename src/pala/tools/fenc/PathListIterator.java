@@ -0,0 +1,100 @@
+package pala.tools.fenc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Lazily reads a list of paths from an {@link InputStream}, one {@link File} at
+ * a time, so that arbitrarily long lists (e.g. the output of
+ * <code>find -print0</code>) can be processed in constant memory.
+ * </p>
+ * <p>
+ * Paths are separated either by newlines (a trailing carriage return on each
+ * line is dropped) or by NUL characters. Empty entries are skipped. Each
+ * entry is turned into a {@link File} by a resolver, so that relative entries
+ * can be resolved against a directory other than the process's own.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class PathListIterator implements Iterator<File>, Closeable {
+
+	private final InputStream in;
+	private final int delimiter;
+	private final Charset charset;
+	private final Function<String, File> resolver;
+
+	private byte[] buff = new byte[256];
+	private File next;
+	private boolean done;
+
+	public PathListIterator(InputStream in, boolean nullDelimited, Charset charset,
+			Function<String, File> resolver) {
+		this.in = new BufferedInputStream(in, 65536);
+		delimiter = nullDelimited ? 0 : '\n';
+		this.charset = charset;
+		this.resolver = resolver;
+	}
+
+	public PathListIterator(InputStream in, boolean nullDelimited, Function<String, File> resolver) {
+		this(in, nullDelimited, Charset.defaultCharset(), resolver);
+	}
+
+	public PathListIterator(InputStream in, boolean nullDelimited) {
+		this(in, nullDelimited, File::new);
+	}
+
+	private File read() throws IOException {
+		while (true) {
+			int len = 0, b;
+			while ((b = in.read()) != -1 && b != delimiter) {
+				if (len == buff.length)
+					buff = Arrays.copyOf(buff, len << 1);
+				buff[len++] = (byte) b;
+			}
+			if (delimiter == '\n' && len != 0 && buff[len - 1] == '\r')
+				len--;
+			if (len != 0)
+				return resolver.apply(new String(buff, 0, len, charset));
+			else if (b == -1)
+				return null;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !done)
+			try {
+				done = (next = read()) == null;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to read the list of files.", e);
+			}
+		return next != null;
+	}
+
+	@Override
+	public File next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		File f = next;
+		next = null;
+		return f;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,264 @@
+package pala.tools.fenc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.Sharding;
+
+/**
+ * <p>
+ * A summary of one process's share of a {@link Sharding sharded} job: which
+ * shard it was, which claim directory it claimed files in and who it claimed
+ * them as, how many files it took on and left to others, and every failure it
+ * reported. Each process writes its summary to a file, and the
+ * summaries of all the processes in a job can then be {@link #merge(List)
+ * merged} into one.
+ * </p>
+ * <p>
+ * A summary file is made of lines of tab separated keys and values. Each
+ * failure is on its own <code>failure</code> line, with the failure's prefix
+ * and message.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class Summary {
+
+	private String shard = "1/1";
+	/**
+	 * The absolute path of the claim directory and the {@link Sharding#getOwner()
+	 * owner} of the claims, or <code>null</code> if files weren't claimed.
+	 */
+	private String claimDirectory, owner;
+	private long assigned, otherShards, claimedElsewhere, reclaimed;
+	private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Returns a logger that passes everything on to the specified logger and
+	 * records failures in this summary.
+	 */
+	MessageLogger recording(MessageLogger output) {
+		return new MessageLogger() {
+
+			@Override
+			public void success(String prefix, String message) {
+				output.success(prefix, message);
+			}
+
+			@Override
+			public void failure(String prefix, String message) {
+				// Messages are kept to one line so that they fit on a failure line.
+				failures.add('[' + prefix + "]: " + message.replace('\n', ' ').replace('\t', ' '));
+				output.failure(prefix, message);
+			}
+		};
+	}
+
+	/**
+	 * Records the counts kept by the {@link Sharding} once processing is done.
+	 */
+	void record(Sharding sharding) {
+		shard = sharding.getIndex() + 1 + "/" + sharding.getCount();
+		assigned = sharding.getAssigned();
+		otherShards = sharding.getOtherShards();
+		claimedElsewhere = sharding.getClaimedElsewhere();
+		reclaimed = sharding.getReclaimed();
+		if (sharding.getClaimDirectory() != null) {
+			claimDirectory = sharding.getClaimDirectory().toAbsolutePath().toString();
+			owner = sharding.getOwner();
+		}
+	}
+
+	void write(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		lines.add("shard\t" + shard);
+		if (claimDirectory != null) {
+			lines.add("claim-dir\t" + claimDirectory);
+			lines.add("owner\t" + owner);
+		}
+		lines.add("assigned\t" + assigned);
+		lines.add("reclaimed\t" + reclaimed);
+		lines.add("other-shards\t" + otherShards);
+		lines.add("claimed-elsewhere\t" + claimedElsewhere);
+		lines.add("failures\t" + failures.size());
+		synchronized (failures) {
+			for (String f : failures)
+				lines.add("failure\t" + f);
+		}
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+	}
+
+	static Summary read(File file) throws IOException {
+		Summary summary = new Summary();
+		int line = 0;
+		for (String l : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line++;
+			int tab = l.indexOf('\t');
+			if (tab == -1)
+				throw new IOException("Line " + line + " of the summary " + file + " is malformed.");
+			String key = l.substring(0, tab), value = l.substring(tab + 1);
+			try {
+				switch (key) {
+				case "shard":
+					summary.shard = value;
+					break;
+				case "claim-dir":
+					summary.claimDirectory = value;
+					break;
+				case "owner":
+					summary.owner = value;
+					break;
+				case "assigned":
+					summary.assigned = Long.parseLong(value);
+					break;
+				case "reclaimed":
+					summary.reclaimed = Long.parseLong(value);
+					break;
+				case "other-shards":
+					summary.otherShards = Long.parseLong(value);
+					break;
+				case "claimed-elsewhere":
+					summary.claimedElsewhere = Long.parseLong(value);
+					break;
+				case "failure":
+					summary.failures.add(value);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Line " + line + " of the summary " + file + " is malformed.");
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Combines the summaries of the processes of one job. The shard of the result
+	 * lists the shards that were combined.
+	 */
+	static Summary merge(List<Summary> summaries) {
+		Summary merged = new Summary();
+		TreeSet<String> shards = new TreeSet<>();
+		for (Summary s : summaries) {
+			shards.add(s.shard);
+			merged.assigned += s.assigned;
+			merged.reclaimed += s.reclaimed;
+			merged.failures.addAll(s.failures);
+		}
+		merged.shard = String.join(",", shards);
+		return merged;
+	}
+
+	/**
+	 * Checks that the summaries cover every shard of the job, each only once, and
+	 * reports any that are missing or repeated. Several processes may share a
+	 * shard if they claimed files, in which case every claim in the claim
+	 * directory must have been made by a process whose summary was given;
+	 * otherwise the files of a process that was left out may not have been
+	 * processed.
+	 */
+	static void check(List<Summary> summaries, MessageLogger logger) {
+		checkShards(summaries, logger);
+		checkClaims(summaries, logger);
+	}
+
+	private static void checkShards(List<Summary> summaries, MessageLogger logger) {
+		int count = -1;
+		boolean[] seen = null;
+		for (Summary s : summaries) {
+			String[] parts = s.shard.split("/");
+			int i, n;
+			try {
+				i = Integer.parseInt(parts[0]);
+				n = Integer.parseInt(parts[1]);
+			} catch (RuntimeException e) {
+				logger.failure("MERG", "A summary has an invalid shard: " + s.shard);
+				continue;
+			}
+			if (n < 1 || i < 1 || i > n) {
+				logger.failure("MERG", "A summary has an invalid shard: " + s.shard);
+				continue;
+			}
+			if (count == -1) {
+				count = n;
+				seen = new boolean[n];
+			} else if (n != count) {
+				logger.failure("MERG", "The summaries are from jobs with different numbers of shards (" + count
+						+ " and " + n + ").");
+				return;
+			}
+			// Processes that claim files may share shards.
+			if (seen[i - 1] && s.claimDirectory == null)
+				logger.failure("MERG", "Shard " + s.shard + " appears in more than one summary.");
+			seen[i - 1] = true;
+		}
+		if (seen != null)
+			for (int i = 0; i < seen.length; i++)
+				if (!seen[i])
+					logger.failure("MERG", "No summary was given for shard " + (i + 1) + '/' + count + '.');
+	}
+
+	private static void checkClaims(List<Summary> summaries, MessageLogger logger) {
+		Map<String, Set<String>> owners = new HashMap<>();
+		int claiming = 0;
+		for (Summary s : summaries)
+			if (s.claimDirectory != null) {
+				claiming++;
+				owners.computeIfAbsent(s.claimDirectory, k -> new HashSet<>()).add(s.owner);
+			}
+		if (claiming != 0 && claiming != summaries.size())
+			logger.failure("MERG", "Only " + claiming + " of the " + summaries.size()
+					+ " summaries are from processes that claimed files.");
+
+		for (Entry<String, Set<String>> e : owners.entrySet()) {
+			Path directory = Path.of(e.getKey());
+			// The directory may have been on a file system that isn't mounted here.
+			if (!Files.isDirectory(directory))
+				continue;
+			Map<String, Long> missing = new TreeMap<>();
+			long claims = 0;
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.claim")) {
+				for (Path f : files) {
+					claims++;
+					Map<String, String> claim = Sharding.readClaim(f);
+					String owner = claim == null ? "an unknown process" : Sharding.owner(claim);
+					if (!e.getValue().contains(owner))
+						missing.merge(owner, 1L, Long::sum);
+				}
+			} catch (IOException | DirectoryIteratorException e1) {
+				logger.failure("MERG", "Failed to read the claims in " + directory + ". [Err msg: "
+						+ e1.getLocalizedMessage() + ']');
+				continue;
+			}
+			for (Entry<String, Long> m : missing.entrySet())
+				logger.failure("MERG", m.getValue() + " of the " + claims + " claims in " + directory + " are held by "
+						+ m.getKey() + ", which has no summary; those files may not have been processed.");
+		}
+	}
+
+	void report(MessageLogger logger) {
+		logger.success("MERG", "Shards " + shard + ": " + assigned + " files taken on"
+				+ (reclaimed == 0 ? "" : " (" + reclaimed + " of them claimed before)") + ", " + failures.size()
+				+ " failures.");
+		synchronized (failures) {
+			for (String f : failures)
+				logger.failure("FAIL", f);
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package pala.tools.fenc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.Throttle;
+
+/**
+ * <p>
+ * Watches the {@link Options#getThrottleFile() throttle control file} and
+ * applies the rate limits written in it to a {@link Throttle}, so that a
+ * long-running run can be slowed down or sped up without restarting it.
+ * </p>
+ * <p>
+ * The file is checked once every {@link #POLL_INTERVAL} milliseconds on a
+ * daemon thread and is only re-read when its modification time or size
+ * changes. A limit missing from the file keeps its current value, and a file
+ * that doesn't exist (or can't be read) changes nothing.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class ThrottleControl implements Runnable {
+
+	/**
+	 * The number of milliseconds between checks of the control file.
+	 */
+	static final long POLL_INTERVAL = 1000;
+
+	private final File file;
+	private final Throttle throttle;
+	private final MessageLogger logger;
+	private long lastModified = -1, lastLength = -1;
+
+	private ThrottleControl(File file, Throttle throttle, MessageLogger logger) {
+		this.file = file;
+		this.throttle = throttle;
+		this.logger = logger;
+	}
+
+	/**
+	 * Applies the control file's current contents, if any, then starts watching
+	 * it.
+	 *
+	 * @param file     The control file.
+	 * @param throttle The {@link Throttle} to adjust.
+	 * @param logger   The logger to report changes and malformed files to.
+	 * @return The watching thread, which stops when interrupted.
+	 */
+	static Thread watch(File file, Throttle throttle, MessageLogger logger) {
+		ThrottleControl control = new ThrottleControl(file, throttle, logger);
+		control.check();
+		Thread thread = new Thread(control, "fenc-throttle-control");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Thread.sleep(POLL_INTERVAL);
+				check();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void check() {
+		long modified = file.lastModified(), length = file.length();
+		if (modified == 0 || modified == lastModified && length == lastLength)
+			return;
+		lastModified = modified;
+		lastLength = length;
+
+		long rate = throttle.getBytesPerSecond(), files = throttle.getFilesPerSecond();
+		try {
+			for (String line : Files.readAllLines(file.toPath())) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int eq = line.indexOf('=');
+				String name = eq == -1 ? line : line.substring(0, eq).trim(),
+						value = eq == -1 ? "" : line.substring(eq + 1).trim();
+				if (name.equals("rate"))
+					rate = Options.toBytes(value);
+				else if (name.equals("files"))
+					files = Long.parseLong(value);
+				else
+					throw new NumberFormatException("Unknown setting: " + name);
+			}
+		} catch (IOException e) {
+			logger.failure("THRT", "Failed to read the throttle control file " + file
+					+ ". The rate limits were not changed. [Err msg: " + e.getLocalizedMessage() + ']');
+			return;
+		} catch (NumberFormatException e) {
+			logger.failure("THRT", "The throttle control file " + file
+					+ " is malformed. The rate limits were not changed. [Err msg: " + e.getLocalizedMessage() + ']');
+			return;
+		}
+		if (rate < 0 || files < 0) {
+			logger.failure("THRT", "The throttle control file " + file
+					+ " specifies a negative limit. The rate limits were not changed.");
+			return;
+		}
+
+		if (rate != throttle.getBytesPerSecond() || files != throttle.getFilesPerSecond()) {
+			throttle.setRates(rate, files);
+			logger.success("THRT", "Rate limits changed to " + (rate == 0 ? "unlimited" : rate + " bytes")
+					+ " per second and " + (files == 0 ? "unlimited" : files + "") + " files per second.");
+		}
+	}
+
+}
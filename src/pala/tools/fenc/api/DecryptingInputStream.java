@@ -0,0 +1,140 @@
+package pala.tools.fenc.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.DecryptionProcessor;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.FileProcessingException;
+
+/**
+ * <p>
+ * An {@link InputStream} that reads data encrypted in the
+ * {@link FileFormat#CBC} format (such as a file encrypted by the program, or
+ * the output of an {@link EncryptingOutputStream}) from an underlying
+ * {@link InputStream} and returns the decrypted data.
+ * </p>
+ * <p>
+ * The preamble is read and checked against the key when the stream is
+ * created.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class DecryptingInputStream extends FilterInputStream {
+
+	private final Cipher cipher;
+	private final byte[] input;
+	private final byte[] buff;
+	private int pos, lim;
+	private boolean eof;
+
+	/**
+	 * @param in         The encrypted data.
+	 * @param key        The key the data was encrypted with.
+	 * @param bufferSize The number of bytes read from the underlying stream at a
+	 *                   time.
+	 * @throws FileProcessingException If the data was not encrypted with the key.
+	 * @throws IOException             If reading the preamble fails.
+	 */
+	public DecryptingInputStream(InputStream in, CipherKey key, int bufferSize)
+			throws IOException, GeneralSecurityException, FileProcessingException {
+		super(in);
+		byte[] preamble = new byte[EncryptionProcessor.CBC_PREAMBLE_LENGTH];
+		int amt = 0, c;
+		while (amt < preamble.length && (c = in.read(preamble, amt, preamble.length - amt)) != -1)
+			amt += c;
+		if (amt < preamble.length)
+			throw new FileProcessingException(
+					"[NENC] The data is too short to have been encrypted by this program; it has no preamble.");
+		cipher = DecryptionProcessor.initCBC(preamble, key);
+		input = new byte[bufferSize];
+		buff = new byte[cipher.getOutputSize(bufferSize) + 16];
+	}
+
+	public DecryptingInputStream(InputStream in, CipherKey key)
+			throws IOException, GeneralSecurityException, FileProcessingException {
+		this(in, key, 8192);
+	}
+
+	/**
+	 * Decrypts more data into the buffer.
+	 *
+	 * @return <code>false</code> if the end of the data was reached and
+	 *         everything has been returned.
+	 */
+	private boolean fill() throws IOException {
+		while (pos == lim) {
+			if (eof)
+				return false;
+			int amt = in.read(input);
+			pos = 0;
+			try {
+				if (amt == -1) {
+					eof = true;
+					lim = cipher.doFinal(buff, 0);
+				} else
+					lim = cipher.update(input, 0, amt, buff);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Failed to decrypt the data; it is corrupt or was not encrypted with this key.",
+						e);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return fill() ? buff[pos++] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int amt = Math.min(len, lim - pos);
+		System.arraycopy(buff, pos, b, off, amt);
+		pos += amt;
+		return amt;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long amt = 0;
+		while (amt < n && fill()) {
+			int c = (int) Math.min(n - amt, lim - pos);
+			pos += c;
+			amt += c;
+		}
+		return amt;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return lim - pos;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported.");
+	}
+
+}
@@ -0,0 +1,109 @@
+package pala.tools.fenc.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+
+/**
+ * <p>
+ * A {@link WritableByteChannel} that encrypts everything written to it in the
+ * {@link FileFormat#CBC} format and writes the result to an underlying
+ * {@link WritableByteChannel}.
+ * </p>
+ * <p>
+ * Data is encrypted straight from the buffers passed to
+ * {@link #write(ByteBuffer)} into a single direct buffer owned by the channel,
+ * which is then handed to the underlying channel, so no intermediate arrays
+ * are involved. The final block of ciphertext is written when the channel is
+ * {@link #close() closed}, which also closes the underlying channel.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class EncryptingChannel implements WritableByteChannel {
+
+	private final WritableByteChannel channel;
+	private final Cipher cipher;
+	private final int bufferSize;
+	private final ByteBuffer buff;
+	private boolean open = true;
+
+	/**
+	 * @param channel    The channel to write the encrypted data to.
+	 * @param key        The key to encrypt with.
+	 * @param bufferSize The most plaintext bytes encrypted at a time.
+	 */
+	public EncryptingChannel(WritableByteChannel channel, CipherKey key, int bufferSize)
+			throws IOException, GeneralSecurityException {
+		this.channel = channel;
+		this.bufferSize = bufferSize;
+		cipher = Cipher.getInstance(EncryptionProcessor.CBC_TRANSFORMATION);
+		byte[] preamble = EncryptionProcessor.initCBC(cipher, key.getHeader(), key.getSecretKey());
+		buff = ByteBuffer.allocateDirect(Math.max(preamble.length, cipher.getOutputSize(bufferSize) + 16));
+		buff.put(preamble).flip();
+		drain();
+	}
+
+	public EncryptingChannel(WritableByteChannel channel, CipherKey key) throws IOException, GeneralSecurityException {
+		this(channel, key, 65536);
+	}
+
+	private void drain() throws IOException {
+		while (buff.hasRemaining())
+			channel.write(buff);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		int amt = src.remaining(), lim = src.limit();
+		try {
+			while (src.hasRemaining()) {
+				src.limit(src.position() + Math.min(src.remaining(), bufferSize));
+				buff.clear();
+				cipher.update(src, buff);
+				buff.flip();
+				drain();
+				src.limit(lim);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt the data written to the channel.", e);
+		} finally {
+			src.limit(lim);
+		}
+		return amt;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!open)
+			return;
+		open = false;
+		try {
+			buff.clear();
+			cipher.doFinal(ByteBuffer.allocate(0), buff);
+			buff.flip();
+			drain();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt the data written to the channel.", e);
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package pala.tools.fenc.api;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+
+/**
+ * <p>
+ * An {@link OutputStream} that encrypts everything written to it in the
+ * {@link FileFormat#CBC} format, exactly as a file encrypted by the program,
+ * and writes the result to an underlying {@link OutputStream}.
+ * </p>
+ * <p>
+ * The preamble (header and initialization vector) is written when the stream
+ * is created. The final block of ciphertext is written when the stream is
+ * {@link #close() closed}, so the stream must be closed for the output to be
+ * complete. Closing also closes the underlying stream.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class EncryptingOutputStream extends FilterOutputStream {
+
+	private final Cipher cipher;
+	private byte[] buff = new byte[0];
+	private boolean closed;
+
+	public EncryptingOutputStream(OutputStream out, CipherKey key) throws IOException, GeneralSecurityException {
+		super(out);
+		cipher = Cipher.getInstance(EncryptionProcessor.CBC_TRANSFORMATION);
+		out.write(EncryptionProcessor.initCBC(cipher, key.getHeader(), key.getSecretKey()));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed.");
+		int size = cipher.getOutputSize(len);
+		if (buff.length < size)
+			buff = new byte[size];
+		try {
+			out.write(buff, 0, cipher.update(b, off, len, buff));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt the data written to the stream.", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			int size = cipher.getOutputSize(0);
+			if (buff.length < size)
+				buff = new byte[size];
+			out.write(buff, 0, cipher.doFinal(buff, 0));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt the data written to the stream.", e);
+		} finally {
+			out.close();
+		}
+	}
+
+}
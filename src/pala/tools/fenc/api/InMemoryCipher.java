@@ -0,0 +1,128 @@
+package pala.tools.fenc.api;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.DecryptionProcessor;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.FileProcessingException;
+
+/**
+ * <p>
+ * One-shot encryption and decryption of in-memory data in the
+ * {@link FileFormat#CBC} format. The output of {@link #encrypt(CipherKey, ByteBuffer, ByteBuffer)}
+ * is byte-for-byte what the program would write when encrypting a file with
+ * the same contents, and {@link #decrypt(CipherKey, ByteBuffer, ByteBuffer)}
+ * accepts the contents of any file the program encrypted in that format.
+ * </p>
+ * <p>
+ * The {@link ByteBuffer} methods encrypt directly from the source buffer into
+ * the destination buffer. A {@link CipherKey} can be reused across any number
+ * of calls, and from multiple threads.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class InMemoryCipher {
+
+	private InMemoryCipher() {
+	}
+
+	/**
+	 * @param plaintextLength The number of bytes to be encrypted.
+	 * @return The exact number of bytes that encrypting that many bytes produces.
+	 */
+	public static int encryptedSize(int plaintextLength) {
+		return EncryptionProcessor.CBC_PREAMBLE_LENGTH + (plaintextLength / 16 + 1) * 16;
+	}
+
+	/**
+	 * Encrypts the remaining bytes of <code>src</code> into <code>dst</code>.
+	 * Both buffers' positions are advanced past the bytes consumed and produced.
+	 *
+	 * @param key The key to encrypt with.
+	 * @param src The plaintext.
+	 * @param dst The buffer to write the encrypted data to. It must have at least
+	 *            {@link #encryptedSize(int) encryptedSize(src.remaining())} bytes
+	 *            remaining.
+	 * @return The number of bytes written to <code>dst</code>.
+	 * @throws ShortBufferException If <code>dst</code> does not have enough room.
+	 *                              Neither buffer is modified in this case.
+	 */
+	public static int encrypt(CipherKey key, ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+		int size = encryptedSize(src.remaining());
+		if (dst.remaining() < size)
+			throw new ShortBufferException("The destination buffer needs " + size + " bytes remaining but only has "
+					+ dst.remaining() + '.');
+		Cipher cipher = Cipher.getInstance(EncryptionProcessor.CBC_TRANSFORMATION);
+		dst.put(EncryptionProcessor.initCBC(cipher, key.getHeader(), key.getSecretKey()));
+		return EncryptionProcessor.CBC_PREAMBLE_LENGTH + cipher.doFinal(src, dst);
+	}
+
+	/**
+	 * Decrypts the remaining bytes of <code>src</code> into <code>dst</code>.
+	 * Both buffers' positions are advanced past the bytes consumed and produced.
+	 *
+	 * @param key The key the data was encrypted with.
+	 * @param src The encrypted data.
+	 * @param dst The buffer to write the plaintext to. It must have at least
+	 *            <code>src.remaining() - 48</code> bytes remaining.
+	 * @return The number of bytes written to <code>dst</code>.
+	 * @throws FileProcessingException  If the data was not encrypted with the key.
+	 * @throws GeneralSecurityException If the data is corrupt (or if
+	 *                                  <code>dst</code> is too small).
+	 */
+	public static int decrypt(CipherKey key, ByteBuffer src, ByteBuffer dst)
+			throws GeneralSecurityException, FileProcessingException {
+		if (src.remaining() < EncryptionProcessor.CBC_PREAMBLE_LENGTH)
+			throw new FileProcessingException(
+					"[NENC] The data is too short to have been encrypted by this program; it has no preamble.");
+		byte[] preamble = new byte[EncryptionProcessor.CBC_PREAMBLE_LENGTH];
+		src.get(preamble);
+		try {
+			return DecryptionProcessor.initCBC(preamble, key).doFinal(src, dst);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			src.position(src.position() - preamble.length);
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypts the remaining bytes of <code>src</code> into a new heap buffer of
+	 * exactly the right size, which is returned ready to be read.
+	 */
+	public static ByteBuffer encrypt(CipherKey key, ByteBuffer src) throws GeneralSecurityException {
+		ByteBuffer dst = ByteBuffer.allocate(encryptedSize(src.remaining()));
+		encrypt(key, src, dst);
+		return dst.flip();
+	}
+
+	/**
+	 * Decrypts the remaining bytes of <code>src</code> into a new heap buffer,
+	 * which is returned ready to be read.
+	 */
+	public static ByteBuffer decrypt(CipherKey key, ByteBuffer src)
+			throws GeneralSecurityException, FileProcessingException {
+		ByteBuffer dst = ByteBuffer.allocate(Math.max(0, src.remaining() - EncryptionProcessor.CBC_PREAMBLE_LENGTH));
+		decrypt(key, src, dst);
+		return dst.flip();
+	}
+
+	public static byte[] encrypt(CipherKey key, byte[] data) throws GeneralSecurityException {
+		return encrypt(key, ByteBuffer.wrap(data)).array();
+	}
+
+	public static byte[] decrypt(CipherKey key, byte[] data) throws GeneralSecurityException, FileProcessingException {
+		ByteBuffer dst = decrypt(key, ByteBuffer.wrap(data));
+		byte[] arr = new byte[dst.remaining()];
+		dst.get(arr);
+		return arr;
+	}
+
+}
@@ -0,0 +1,108 @@
+package pala.tools.fenc.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.DecryptionProcessor;
+import pala.tools.fenc.processing.EncryptionProcessor;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.FileIO;
+
+/**
+ * <p>
+ * Compares the effect that encrypting (and decrypting) a set of files normally
+ * and with {@link FileIO direct I/O} has on the page cache, along with the
+ * throughput of each.
+ * </p>
+ * <p>
+ * Usage: <code>DirectIOBenchmark &lt;directory&gt; [files] [file size (MB)]
+ * [buffer size]</code>. The files are generated in the directory, which should
+ * be on the file system being measured, and deleted afterwards. The growth of
+ * the <code>Cached</code> line of <code>/proc/meminfo</code> is reported for
+ * each run, so this only measures cache impact on Linux. For meaningful
+ * numbers, the total size of the files should be a sizable fraction of the
+ * machine's memory, and the cache should be dropped (<code>echo 1 &gt;
+ * /proc/sys/vm/drop_caches</code>) before running.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class DirectIOBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: DirectIOBenchmark <directory> [files] [file size (MB)] [buffer size]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		long size = (args.length > 2 ? Long.parseLong(args[2]) : 256) << 20;
+		int bufferSize = args.length > 3 ? Integer.parseInt(args[3]) : 65536;
+
+		CipherKey key = new CipherKey("benchmark");
+		Path work = Files.createTempDirectory(dir.toPath(), "fenc-bench");
+		try {
+			File[] sources = new File[files];
+			Random random = new Random(0);
+			byte[] block = new byte[1 << 20];
+			for (int i = 0; i < files; i++) {
+				sources[i] = work.resolve("src" + i).toFile();
+				try (OutputStream os = Files.newOutputStream(sources[i].toPath())) {
+					for (long j = 0; j < size; j += block.length) {
+						random.nextBytes(block);
+						os.write(block, 0, (int) Math.min(block.length, size - j));
+					}
+				}
+			}
+
+			System.out.println("Files: " + files + " x " + (size >> 20) + " MB, buffer size: " + bufferSize);
+			for (FileIO io : List.of(FileIO.PLAIN, new FileIO(true, bufferSize)))
+				run(io, sources, size, bufferSize, key);
+		} finally {
+			try (var paths = Files.list(work)) {
+				paths.forEach(p -> p.toFile().delete());
+			}
+			Files.delete(work);
+		}
+	}
+
+	private static void run(FileIO io, File[] sources, long size, int bufferSize, CipherKey key) throws Exception {
+		String name = io.isDirect() ? "direct" : "normal";
+		long cached = cachedKB(), time = System.nanoTime();
+		for (File f : sources) {
+			File enc = new File(f.getPath() + ".enc"), dec = new File(f.getPath() + ".dec");
+			EncryptionProcessor.encryptFile(f, enc, bufferSize, key, FileFormat.CBC, io);
+			DecryptionProcessor.decryptFile(enc, dec, bufferSize, key, io);
+			enc.delete();
+			dec.delete();
+		}
+		time = System.nanoTime() - time;
+		long after = cachedKB();
+		// Each file is read once and written once in each direction.
+		double mb = 4.0 * sources.length * size / (1 << 20);
+		System.out.printf("%-7s %10.1f MB/s   page cache growth: %s%n", name, mb / (time / 1e9),
+				cached == -1 || after == -1 ? "unknown" : ((after - cached) / 1024) + " MB");
+	}
+
+	/**
+	 * @return The size of the page cache in KB, or <code>-1</code> if it can't be
+	 *         determined.
+	 */
+	private static long cachedKB() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/meminfo")))
+				if (line.startsWith("Cached:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+		} catch (IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+
+}
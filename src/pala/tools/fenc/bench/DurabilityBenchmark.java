@@ -0,0 +1,127 @@
+package pala.tools.fenc.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.CipherProcessor;
+import pala.tools.fenc.processing.CipherProcessor.Durability;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.FileIO;
+import pala.tools.fenc.processing.GroupCommit;
+import pala.tools.fenc.processing.LaneScheduler;
+
+/**
+ * <p>
+ * Measures what each {@link Durability} level costs, by encrypting the same
+ * set of small files in place at each level and reporting the files processed
+ * per second.
+ * </p>
+ * <p>
+ * Usage: <code>DurabilityBenchmark &lt;directory&gt; [files] [file size (KB)]
+ * [workers] [group files] [group delay (ms)]</code>. The files are generated in
+ * the directory, which should be on the file system being measured (forcing
+ * files to disk on a RAM disk costs nothing), and deleted afterwards. The files
+ * are regenerated before each level, so that every level does the same work,
+ * and the files are first encrypted once without being measured, so that JIT
+ * compilation doesn't count against the first level.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class DurabilityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println(
+					"Usage: DurabilityBenchmark <directory> [files] [file size (KB)] [workers] [group files] [group delay (ms)]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int size = (args.length > 2 ? Integer.parseInt(args[2]) : 16) << 10;
+		int workers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int groupFiles = args.length > 4 ? Integer.parseInt(args[4]) : 256;
+		long groupDelay = args.length > 5 ? Long.parseLong(args[5]) : 100;
+
+		AtomicInteger failures = new AtomicInteger();
+		MessageLogger logger = new MessageLogger() {
+			@Override
+			public void success(String prefix, String message) {
+			}
+
+			@Override
+			public void failure(String prefix, String message) {
+				failures.incrementAndGet();
+				System.err.println('[' + prefix + "]: " + message);
+			}
+		};
+
+		CipherKey key = new CipherKey("benchmark");
+		Path work = Files.createTempDirectory(dir.toPath(), "fenc-bench");
+		try {
+			System.out.println("Files: " + files + " x " + (size >> 10) + " KB, workers: " + workers + ", groups of "
+					+ groupFiles + " files or " + groupDelay + " ms");
+			generate(work, files, size);
+			run(work, Durability.NONE, key, workers, groupFiles, groupDelay, logger);
+			for (Durability durability : Durability.values()) {
+				generate(work, files, size);
+				long time = run(work, durability, key, workers, groupFiles, groupDelay, logger);
+				System.out.printf("%-6s %10.1f files/s%n", durability.name().toLowerCase(), files / (time / 1e9));
+			}
+			if (failures.get() != 0)
+				System.err.println(failures.get() + " files failed; the results are not comparable.");
+		} finally {
+			try (var paths = Files.list(work)) {
+				paths.forEach(p -> p.toFile().delete());
+			}
+			Files.delete(work);
+		}
+	}
+
+	/**
+	 * Encrypts the files at the specified level.
+	 *
+	 * @return The time taken, in nanoseconds.
+	 */
+	private static long run(Path work, Durability durability, CipherKey key, int workers, int groupFiles,
+			long groupDelay, MessageLogger logger) {
+		CipherProcessor processor = CipherProcessor.create(true, key, 65536, FileFormat.CBC, logger);
+		processor.setDurability(durability);
+		GroupCommit group = null;
+		if (durability == Durability.GROUP)
+			processor.setGroupCommit(group = new GroupCommit(groupFiles, groupDelay, null, logger));
+
+		long time = System.nanoTime();
+		LaneScheduler scheduler = new LaneScheduler(processor, Long.MAX_VALUE, workers, 1,
+				MessageLogger.suppressSuccess());
+		scheduler.process(work.toFile());
+		scheduler.finish();
+		if (group != null)
+			group.close();
+		return System.nanoTime() - time;
+	}
+
+	/**
+	 * Writes the files to encrypt, replacing those encrypted by the previous
+	 * level, and forces them to disk so that writing them back doesn't count
+	 * against the next level.
+	 */
+	private static void generate(Path work, int files, int size) throws IOException {
+		Random random = new Random(0);
+		byte[] data = new byte[size];
+		for (int i = 0; i < files; i++) {
+			random.nextBytes(data);
+			Path f = work.resolve("f" + i);
+			Files.write(f, data);
+			FileIO.force(f.toFile());
+		}
+	}
+
+}
@@ -0,0 +1,356 @@
+package pala.tools.fenc.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import pala.libs.generic.parsers.cli.CLIParams;
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.processing.CipherKey;
+import pala.tools.fenc.processing.CipherProcessor;
+import pala.tools.fenc.processing.DirectoryProcessor;
+import pala.tools.fenc.processing.FileFormat;
+import pala.tools.fenc.processing.HashProcessor;
+import pala.tools.fenc.processing.LaneScheduler;
+
+/**
+ * <p>
+ * Generates a synthetic directory tree, runs it through a full encrypt,
+ * decrypt, and hash cycle using the program's {@link DirectoryProcessor}s,
+ * checks that every file decrypted back to exactly what was generated, and
+ * appends the throughput and resource usage of each phase to a results file.
+ * </p>
+ * <p>
+ * The tree is determined entirely by the arguments (including the seed), so
+ * runs of different versions of the program over the same arguments can be
+ * compared. Arguments (all optional):
+ * </p>
+ * <ul>
+ * <li><code>--dir</code>: The directory to generate the tree in. A temporary
+ * directory is used by default. The tree is deleted afterwards.</li>
+ * <li><code>--depth</code> (<code>2</code>), <code>--fan-out</code>
+ * (<code>4</code>), <code>--files</code> (<code>16</code>): The number of
+ * levels of subdirectories, the number of subdirectories in each directory,
+ * and the number of files in each directory.</li>
+ * <li><code>--min-size</code> (<code>1024</code>), <code>--max-size</code>
+ * (<code>4194304</code>): File sizes are distributed log-uniformly between
+ * these, so that there are as many small files as large ones per order of
+ * magnitude.</li>
+ * <li><code>--compressibility</code> (<code>0.5</code>): The fraction of each
+ * file's blocks that are repetitive rather than random.</li>
+ * <li><code>--seed</code> (<code>0</code>), <code>-bs</code>,
+ * <code>-a</code>, <code>-sw</code>, <code>-lw</code>: As for the program
+ * itself.</li>
+ * <li><code>--results</code> (<code>fenc-load.tsv</code>): The file that
+ * results are appended to, one line per phase.</li>
+ * <li><code>--label</code> (<code>dev</code>): A label for the run, e.g. the
+ * version being measured.</li>
+ * <li><code>--baseline</code>: The label of an earlier run in the results file
+ * to compare this run to.</li>
+ * </ul>
+ * <p>
+ * The program exits with status <code>1</code> if any file failed to process or
+ * to round trip.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class LoadGenerator {
+
+	private static final int BLOCK_SIZE = 4096;
+	private static final String HEADER = "label\ttime\tphase\tfiles\tbytes\tseconds\tfiles/s\tMB/s\tgc ms\tgc count\tpeak rss KB\tconfig";
+
+	private final int depth, fanOut, filesPerDirectory;
+	private final long minSize, maxSize, seed;
+	private final double compressibility;
+
+	private LoadGenerator(CLIParams params) {
+		depth = params.readInt(2, "--depth");
+		fanOut = params.readInt(4, "--fan-out");
+		filesPerDirectory = params.readInt(16, "--files");
+		minSize = Long.parseLong(params.readString("1024", "--min-size"));
+		maxSize = Long.parseLong(params.readString("4194304", "--max-size"));
+		compressibility = Double.parseDouble(params.readString("0.5", "--compressibility"));
+		seed = Long.parseLong(params.readString("0", "--seed"));
+	}
+
+	private String config() {
+		return "depth=" + depth + ",fan-out=" + fanOut + ",files=" + filesPerDirectory + ",size=" + minSize + '-'
+				+ maxSize + ",compressibility=" + compressibility + ",seed=" + seed;
+	}
+
+	/**
+	 * A generated file, which can be regenerated from its seed.
+	 */
+	private static final class Entry {
+		private final File file;
+		private final long seed, size;
+
+		private Entry(File file, long seed, long size) {
+			this.file = file;
+			this.seed = seed;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Writes the contents of a file: blocks that are either random or a short
+	 * repeated pattern, chosen at random.
+	 */
+	private void content(long seed, long size, OutputStream out) throws IOException {
+		Random random = new Random(seed);
+		byte[] block = new byte[BLOCK_SIZE];
+		for (long written = 0; written < size; written += BLOCK_SIZE) {
+			if (random.nextDouble() < compressibility) {
+				byte b = (byte) random.nextInt(), c = (byte) random.nextInt();
+				for (int i = 0; i < block.length; i++)
+					block[i] = i % 7 == 0 ? c : b;
+			} else
+				random.nextBytes(block);
+			out.write(block, 0, (int) Math.min(BLOCK_SIZE, size - written));
+		}
+	}
+
+	private List<Entry> generate(Path root) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		Random random = new Random(seed);
+		generate(root, depth, random, entries);
+		return entries;
+	}
+
+	private void generate(Path dir, int levels, Random random, List<Entry> entries) throws IOException {
+		Files.createDirectories(dir);
+		for (int i = 0; i < filesPerDirectory; i++) {
+			long size = (long) Math.exp(Math.log(minSize) + random.nextDouble() * (Math.log(maxSize) - Math.log(minSize)));
+			Entry e = new Entry(dir.resolve("file" + i).toFile(), random.nextLong(), size);
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(e.file), 65536)) {
+				content(e.seed, e.size, out);
+			}
+			entries.add(e);
+		}
+		if (levels > 0)
+			for (int i = 0; i < fanOut; i++)
+				generate(dir.resolve("dir" + i), levels - 1, random, entries);
+	}
+
+	/**
+	 * Checks that a file has exactly the contents it was generated with.
+	 */
+	private boolean matches(Entry e) throws IOException {
+		if (e.file.length() != e.size)
+			return false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(e.file), 65536)) {
+			boolean[] ok = { true };
+			content(e.seed, e.size, new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (in.read() != (b & 0xFF))
+						ok[0] = false;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					byte[] actual = in.readNBytes(len);
+					if (!Arrays.equals(actual, 0, actual.length, b, off, off + len))
+						ok[0] = false;
+				}
+			});
+			return ok[0];
+		}
+	}
+
+	/**
+	 * The measurements of one phase.
+	 */
+	private static final class Phase {
+		private final String name;
+		private final int files;
+		private final long bytes, nanos, gcMillis, gcCount, peakRss;
+
+		private Phase(String name, int files, long bytes, long nanos, long gcMillis, long gcCount, long peakRss) {
+			this.name = name;
+			this.files = files;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.gcMillis = gcMillis;
+			this.gcCount = gcCount;
+			this.peakRss = peakRss;
+		}
+
+		private double seconds() {
+			return nanos / 1e9;
+		}
+
+		private double mbPerSecond() {
+			return bytes / 1048576.0 / seconds();
+		}
+	}
+
+	private static long gcMillis() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionTime());
+		return total;
+	}
+
+	private static long gcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionCount());
+		return total;
+	}
+
+	/**
+	 * @return The peak resident set size of this process in KB, or
+	 *         <code>-1</code> if it can't be determined (it is read from
+	 *         <code>/proc</code>, so only on Linux).
+	 */
+	private static long peakRss() {
+		try {
+			for (String line : Files.readAllLines(Path.of("/proc/self/status")))
+				if (line.startsWith("VmHWM:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+		} catch (IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+
+	private static Phase run(String name, DirectoryProcessor processor, CLIParams params, File root,
+			List<Entry> entries) {
+		long bytes = 0;
+		for (Entry e : entries)
+			bytes += e.file.length();
+		long gcMillis = gcMillis(), gcCount = gcCount(), start = System.nanoTime();
+		int sw = params.readInt(0, "--small-workers", "-sw"), lw = params.readInt(0, "--large-workers", "-lw");
+		if (sw != 0 || lw != 0) {
+			LaneScheduler scheduler = new LaneScheduler(processor, 64 << 20, Math.max(sw, 1), Math.max(lw, 1),
+					MessageLogger.suppressSuccess());
+			scheduler.process(root);
+			scheduler.finish();
+		} else
+			processor.process(root);
+		return new Phase(name, entries.size(), bytes, System.nanoTime() - start, gcMillis() - gcMillis,
+				gcCount() - gcCount, peakRss());
+	}
+
+	public static void main(String[] args) throws IOException {
+		CLIParams params = new CLIParams(args);
+		LoadGenerator generator = new LoadGenerator(params);
+		String label = params.readString("dev", "--label"), baseline = params.readString((String) null, "--baseline");
+		File results = new File(params.readString("fenc-load.tsv", "--results"));
+		int bufferSize = params.readInt(65536, "--buffer-size", "-bs");
+		FileFormat format = params.checkFlag(false, "--authenticated", "-a") ? FileFormat.AUTHENTICATED
+				: FileFormat.CBC;
+		String dir = params.readString((String) null, "--dir");
+		Path root = dir == null ? Files.createTempDirectory("fenc-load") : Files.createTempDirectory(Path.of(dir), "fenc-load");
+
+		AtomicInteger failures = new AtomicInteger();
+		MessageLogger logger = new MessageLogger() {
+			@Override
+			public void success(String prefix, String message) {
+			}
+
+			@Override
+			public void failure(String prefix, String message) {
+				failures.incrementAndGet();
+				System.err.println('[' + prefix + "]: " + message);
+			}
+		};
+
+		List<Phase> phases = new ArrayList<>();
+		int mismatches = 0;
+		try {
+			System.out.println("Generating " + generator.config() + " in " + root + "...");
+			List<Entry> entries = generator.generate(root);
+			CipherKey key = new CipherKey("load-generator");
+			phases.add(run("encrypt", CipherProcessor.create(true, key, bufferSize, format, logger), params,
+					root.toFile(), entries));
+			phases.add(run("decrypt", CipherProcessor.create(false, key, bufferSize, format, logger), params,
+					root.toFile(), entries));
+			phases.add(run("hash", new HashProcessor(logger, bufferSize), params, root.toFile(), entries));
+			for (Entry e : entries)
+				if (!generator.matches(e)) {
+					mismatches++;
+					System.err.println("[LOAD]: " + e.file + " did not round trip.");
+				}
+		} finally {
+			try (Stream<Path> paths = Files.walk(root)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+
+		String config = generator.config() + ",bs=" + bufferSize + ",format=" + format;
+		Map<String, Double> previous = baseline == null ? null : baseline(results, baseline, config);
+		boolean header = !results.exists() || results.length() == 0;
+		try (PrintWriter out = new PrintWriter(new FileOutputStream(results, true))) {
+			if (header)
+				out.println(HEADER);
+			String time = Instant.now().toString();
+			for (Phase p : phases) {
+				out.printf(Locale.ROOT, "%s\t%s\t%s\t%d\t%d\t%.3f\t%.1f\t%.1f\t%d\t%d\t%d\t%s%n", label, time, p.name, p.files,
+						p.bytes, p.seconds(), p.files / p.seconds(), p.mbPerSecond(), p.gcMillis, p.gcCount,
+						p.peakRss, config);
+				System.out.printf(Locale.ROOT, "%-8s %8.1f files/s %8.1f MB/s   gc %d ms (%d)   peak rss %d KB%s%n", p.name,
+						p.files / p.seconds(), p.mbPerSecond(), p.gcMillis, p.gcCount, p.peakRss,
+						previous == null || !previous.containsKey(p.name) ? ""
+								: String.format(Locale.ROOT, "   %+.1f%% vs %s", (p.mbPerSecond() / previous.get(p.name) - 1) * 100,
+										baseline));
+			}
+		}
+
+		if (failures.get() != 0 || mismatches != 0) {
+			System.err.println("[LOAD]: " + failures.get() + " failures and " + mismatches + " round trip mismatches.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads the MB/s of each phase of the latest run with the specified label and
+	 * configuration from the results file.
+	 */
+	private static Map<String, Double> baseline(File results, String label, String config) throws IOException {
+		Map<String, Double> phases = new HashMap<>();
+		if (!results.exists())
+			return phases;
+		String time = null;
+		try (BufferedReader reader = new BufferedReader(new FileReader(results))) {
+			for (String line; (line = reader.readLine()) != null;) {
+				String[] cols = line.split("\t");
+				if (cols.length < 12 || !cols[0].equals(label) || !cols[11].equals(config))
+					continue;
+				// Only keep the latest run.
+				if (!cols[1].equals(time)) {
+					time = cols[1];
+					phases.clear();
+				}
+				phases.put(cols[2], Double.parseDouble(cols[7]));
+			}
+		}
+		return phases;
+	}
+
+}
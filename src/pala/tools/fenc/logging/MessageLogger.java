@@ -78,4 +78,25 @@ public interface MessageLogger {
 	static FailuresOnlyMessageLogger suppressSuccess() {
 		return new FailuresOnlyMessageLogger();
 	}
+
+	/**
+	 * Returns a {@link MessageLogger} that passes failures on to the specified
+	 * logger and discards successes.
+	 * 
+	 * @param output The logger to send failures to.
+	 * @return The new {@link MessageLogger}.
+	 */
+	static MessageLogger suppressSuccess(MessageLogger output) {
+		return new MessageLogger() {
+
+			@Override
+			public void success(String prefix, String message) {
+			}
+
+			@Override
+			public void failure(String prefix, String message) {
+				output.failure(prefix, message);
+			}
+		};
+	}
 }
@@ -0,0 +1,446 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * Reads and writes the {@link FileFormat#AUTHENTICATED authenticated} file
+ * format. A file in this format consists of a preamble followed by a sequence
+ * of chunks:
+ * </p>
+ * <ol>
+ * <li>The 32-byte {@link CipherKey#getAuthenticatedHeader() authenticated
+ * header} for the key,</li>
+ * <li>a 1-byte format {@link #VERSION version},</li>
+ * <li>the 4-byte (big endian) chunk size, i.e. the number of plaintext bytes in
+ * each chunk,</li>
+ * <li>an 8-byte random nonce prefix,</li>
+ * <li>then the chunks. Each is its plaintext encrypted with AES in GCM mode
+ * followed by its 16-byte authentication tag. Every chunk holds exactly chunk
+ * size bytes of plaintext except the last one, which always holds fewer (and
+ * may hold none).</li>
+ * </ol>
+ * <p>
+ * Each chunk's nonce is the nonce prefix followed by the chunk's 4-byte index.
+ * Each chunk's tag also covers the preamble and whether the chunk is the last
+ * one, so chunks can't be reordered, moved between files, or cut off without
+ * being detected. Since every chunk but the last has the same size, any chunk
+ * can be located and checked on its own, which is what allows
+ * {@link VerificationProcessor} to check a file's chunks in parallel.
+ * </p>
+ * <p>
+ * Files in the {@link FileFormat#SPARSE sparse} format are written in version
+ * {@link #SPARSE_VERSION} of the format, in which chunks of plaintext that are
+ * entirely zero are left out. Each chunk's plaintext then starts with an 8-byte
+ * (big endian) count of the zero chunks left out just before it, which is
+ * encrypted and authenticated along with the rest of the chunk. Zero chunks at
+ * the end of the file are counted by the last chunk, which is always written.
+ * Since the counts are inside the chunks, every written chunk still has the
+ * same size, and the file can still be decrypted in one pass and verified in
+ * parallel.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class AuthenticatedFormat {
+
+	public static final String HASH_STRING = "Authenticated by FEnc.";
+	public static final byte VERSION = 2, SPARSE_VERSION = 3;
+	/**
+	 * The length of the count of zero chunks at the start of each chunk's
+	 * plaintext in the sparse format.
+	 */
+	public static final int ZERO_COUNT_LENGTH = 8;
+	public static final int TAG_LENGTH = 16, NONCE_PREFIX_LENGTH = 8, PREAMBLE_LENGTH = 32 + 1 + 4
+			+ NONCE_PREFIX_LENGTH;
+	/**
+	 * The largest chunk size accepted when reading a preamble, so that a damaged
+	 * preamble can't make the reader allocate an enormous buffer.
+	 */
+	public static final int MAX_CHUNK_SIZE = 1 << 30;
+	/**
+	 * The number of chunks a file may have. The chunk index in each nonce is 4
+	 * bytes.
+	 */
+	public static final long MAX_CHUNKS = 0xFFFFFFFFL;
+
+	private AuthenticatedFormat() {
+	}
+
+	/**
+	 * The parsed preamble of a file in the authenticated format.
+	 */
+	public static final class Preamble {
+		private final byte[] bytes;
+		private final int chunkSize;
+		private final boolean sparse;
+
+		private Preamble(byte[] bytes, int chunkSize, boolean sparse) {
+			this.bytes = bytes;
+			this.chunkSize = chunkSize;
+			this.sparse = sparse;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		/**
+		 * @return Whether the file is in the {@link FileFormat#SPARSE sparse}
+		 *         format.
+		 */
+		public boolean isSparse() {
+			return sparse;
+		}
+
+		/**
+		 * @return The size of a full chunk in the file, including its tag (and, in
+		 *         the sparse format, its count of zero chunks).
+		 */
+		public int getStride() {
+			return chunkSize + TAG_LENGTH + (sparse ? ZERO_COUNT_LENGTH : 0);
+		}
+
+		/**
+		 * Parses a preamble. The header at the start of the preamble should already
+		 * have been checked against the key.
+		 *
+		 * @param bytes The {@link #PREAMBLE_LENGTH} bytes of the preamble.
+		 * @param f     The file the preamble was read from, for error messages.
+		 * @return The parsed {@link Preamble}.
+		 * @throws FileProcessingException If the version is unknown or the chunk
+		 *                                 size is invalid.
+		 */
+		public static Preamble parse(byte[] bytes, File f) throws FileProcessingException {
+			ByteBuffer buff = ByteBuffer.wrap(bytes, 32, 5);
+			byte version = buff.get();
+			if (version != VERSION && version != SPARSE_VERSION)
+				throw new FileProcessingException("[VERS](" + f.getAbsolutePath() + ") The file was written in version "
+						+ version + " of the authenticated format, which this version of the program can't read.");
+			int chunkSize = buff.getInt();
+			if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+				throw new FileProcessingException("[CORR](" + f.getAbsolutePath()
+						+ ") The file's preamble is corrupt; it specifies a chunk size of " + chunkSize + '.');
+			return new Preamble(bytes, chunkSize, version == SPARSE_VERSION);
+		}
+	}
+
+	/**
+	 * Reads from the stream until the specified number of bytes have been read or
+	 * the end of the stream is reached.
+	 *
+	 * @return The number of bytes read, which is less than <code>len</code> only
+	 *         if the end of the stream was reached.
+	 */
+	static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		int amt = 0, c;
+		while (amt < len && (c = in.read(b, off + amt, len - amt)) != -1)
+			amt += c;
+		return amt;
+	}
+
+	public static Cipher cipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+		return Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * Initializes the provided GCM {@link Cipher} to encrypt or decrypt the chunk
+	 * with the specified index.
+	 */
+	static void init(Cipher cipher, int mode, SecretKeySpec key, Preamble preamble, long index, boolean last)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] nonce = Arrays.copyOfRange(preamble.bytes, PREAMBLE_LENGTH - NONCE_PREFIX_LENGTH,
+				PREAMBLE_LENGTH + 4);
+		ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt((int) index);
+		cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(preamble.bytes);
+		cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+	}
+
+	/**
+	 * Encrypts a file into the authenticated format, writing the result, preamble
+	 * included, to the destination channel.
+	 *
+	 * @param src       The rest of the plaintext.
+	 * @param in        A buffer holding the start of the plaintext, ready to be
+	 *                  read. It must hold <code>chunkSize</code> bytes unless the
+	 *                  whole plaintext is shorter than that. It is reused to read
+	 *                  the rest of the plaintext.
+	 * @param dst       The destination of the encrypted file.
+	 * @param chunkSize The number of plaintext bytes in each chunk.
+	 * @param key       The key to encrypt with.
+	 * @param io        The {@link FileIO} to allocate buffers from.
+	 */
+	public static void encrypt(ReadableByteChannel src, ByteBuffer in, WritableByteChannel dst, int chunkSize,
+			CipherKey key, FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		encrypt(src, in, dst, chunkSize, key, io, false);
+	}
+
+	/**
+	 * Encrypts a file like {@link #encrypt(ReadableByteChannel, ByteBuffer,
+	 * WritableByteChannel, int, CipherKey, FileIO)}, but, if <code>sparse</code>
+	 * is <code>true</code>, into the {@link FileFormat#SPARSE sparse} format,
+	 * leaving out chunks of plaintext that are entirely zero.
+	 */
+	public static void encrypt(ReadableByteChannel src, ByteBuffer in, WritableByteChannel dst, int chunkSize,
+			CipherKey key, FileIO io, boolean sparse) throws IOException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		byte[] pb = new byte[PREAMBLE_LENGTH];
+		System.arraycopy(key.getAuthenticatedHeader(), 0, pb, 0, 32);
+		ByteBuffer.wrap(pb, 32, 5).put(sparse ? SPARSE_VERSION : VERSION).putInt(chunkSize);
+		byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+		new SecureRandom().nextBytes(prefix);
+		System.arraycopy(prefix, 0, pb, PREAMBLE_LENGTH - NONCE_PREFIX_LENGTH, NONCE_PREFIX_LENGTH);
+		Preamble preamble = new Preamble(pb, chunkSize, sparse);
+		FileIO.writeFully(dst, ByteBuffer.wrap(pb));
+
+		Cipher cipher = cipher();
+		int stride = preamble.getStride();
+		ByteBuffer out = io.allocate(stride), count = ByteBuffer.allocate(ZERO_COUNT_LENGTH);
+		try {
+			long zeros = 0;
+			for (long index = 0;;) {
+				boolean last = in.remaining() < chunkSize;
+				if (sparse && !last && FileIO.isZero(in))
+					zeros++;
+				else {
+					if (index == MAX_CHUNKS)
+						throw new FileProcessingException("The file is too large to be encrypted with a chunk size of "
+								+ chunkSize + " bytes. Use a larger buffer size.");
+					init(cipher, Cipher.ENCRYPT_MODE, key.getSecretKey(), preamble, index, last);
+					FileIO.clear(out, stride);
+					try {
+						if (sparse) {
+							cipher.update(count.clear().putLong(zeros).flip(), out);
+							zeros = 0;
+						}
+						cipher.doFinal(in, out);
+					} catch (GeneralSecurityException e) {
+						throw new FileProcessingException("Failed to encrypt chunk " + index + '.', e);
+					}
+					FileIO.writeFully(dst, out.flip());
+					index++;
+					if (last)
+						break;
+				}
+				FileIO.readFully(src, FileIO.clear(in, chunkSize));
+				in.flip();
+			}
+		} finally {
+			io.release(out);
+		}
+	}
+
+	/**
+	 * Decrypts a file in the authenticated format. The caller has already read
+	 * the file's 32-byte header and matched it against the key.
+	 *
+	 * @param src The rest of the encrypted file.
+	 * @param in  A buffer holding the bytes of the file read after its header,
+	 *            ready to be read. They are consumed before <code>src</code> is
+	 *            read.
+	 * @param f   The file being decrypted, for error messages.
+	 * @param dst The destination of the plaintext.
+	 * @param key The key to decrypt with.
+	 * @param io  The {@link FileIO} to allocate buffers from.
+	 * @return Whether the file was in the {@link FileFormat#SPARSE sparse} format.
+	 * @throws FileProcessingException If the file is corrupt, truncated or in an
+	 *                                 unknown version of the format.
+	 */
+	public static boolean decrypt(ReadableByteChannel src, ByteBuffer in, File f, WritableByteChannel dst,
+			CipherKey key, FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		try (Decryptor decryptor = new Decryptor(src, in, f, key, io)) {
+			while (decryptor.next()) {
+				// Zero chunks left out of a sparse file become holes if the destination
+				// allows it.
+				FileIO.writeZeros(dst, decryptor.zeros);
+				decryptor.zeros = 0;
+				FileIO.writeFully(dst, decryptor.out);
+			}
+			return decryptor.preamble.isSparse();
+		}
+	}
+
+	/**
+	 * Returns a channel that reads the plaintext of a file in the authenticated
+	 * format, decrypting and authenticating one chunk at a time. The arguments are
+	 * as for {@link #decrypt(ReadableByteChannel, ByteBuffer, File,
+	 * WritableByteChannel, CipherKey, FileIO)}. Reading from the channel throws a
+	 * {@link FileProcessingException} once a corrupt chunk is reached. Closing
+	 * the channel does not close <code>src</code>.
+	 */
+	public static ReadableByteChannel decrypting(ReadableByteChannel src, ByteBuffer in, File f, CipherKey key,
+			FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, FileProcessingException {
+		return new Decryptor(src, in, f, key, io);
+	}
+
+	private static final class Decryptor implements ReadableByteChannel {
+		private final ReadableByteChannel src;
+		private final ByteBuffer in, chunk, out;
+		private final File f;
+		private final CipherKey key;
+		private final FileIO io;
+		private final Preamble preamble;
+		private final Cipher cipher;
+		private final int stride;
+		private long index, offset = PREAMBLE_LENGTH;
+		/**
+		 * The number of zero bytes that come before {@link #out} in the plaintext.
+		 */
+		private long zeros;
+		private boolean done, open = true;
+
+		private Decryptor(ReadableByteChannel src, ByteBuffer in, File f, CipherKey key, FileIO io)
+				throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, FileProcessingException {
+			this.src = src;
+			this.in = in;
+			this.f = f;
+			this.key = key;
+			this.io = io;
+			byte[] pb = new byte[PREAMBLE_LENGTH];
+			System.arraycopy(key.getAuthenticatedHeader(), 0, pb, 0, 32);
+			ByteBuffer pbb = ByteBuffer.wrap(pb, 32, PREAMBLE_LENGTH - 32);
+			if (fill(src, in, pbb) != PREAMBLE_LENGTH - 32)
+				throw new FileProcessingException(
+						"[CORR](" + f.getAbsolutePath() + ") The file is truncated; its preamble is incomplete.");
+			preamble = Preamble.parse(pb, f);
+			cipher = cipher();
+			stride = preamble.getStride();
+			chunk = io.allocate(stride);
+			out = io.allocate(stride).flip();
+		}
+
+		/**
+		 * Decrypts the next chunk into {@link #out}.
+		 *
+		 * @return <code>false</code> if there are no more chunks.
+		 */
+		private boolean next() throws IOException, FileProcessingException {
+			if (done)
+				return false;
+			int amt = fill(src, in, FileIO.clear(chunk, stride));
+			chunk.flip();
+			boolean last = amt < stride;
+			if (last && amt < TAG_LENGTH)
+				throw new FileProcessingException("[CORR](" + f.getAbsolutePath() + ") The file is truncated at offset "
+						+ (offset + amt) + "; its last chunk is missing.");
+			FileIO.clear(out, stride);
+			try {
+				init(cipher, Cipher.DECRYPT_MODE, key.getSecretKey(), preamble, index, last);
+				cipher.doFinal(chunk, out);
+			} catch (AEADBadTagException e) {
+				throw new FileProcessingException("[CORR](" + f.getAbsolutePath() + ") Chunk " + index + " at offset "
+						+ offset + " failed authentication; the file is corrupt or was tampered with.");
+			} catch (GeneralSecurityException e) {
+				throw new FileProcessingException("Failed to decrypt chunk " + index + " at offset " + offset + '.', e);
+			}
+			out.flip();
+			if (preamble.isSparse()) {
+				if (out.remaining() < ZERO_COUNT_LENGTH)
+					throw new FileProcessingException(
+							"[CORR](" + f.getAbsolutePath() + ") Chunk " + index + " at offset " + offset
+									+ " is too short to hold its count of zero chunks.");
+				long count = out.getLong();
+				if (count < 0 || count > Long.MAX_VALUE / preamble.getChunkSize())
+					throw new FileProcessingException("[CORR](" + f.getAbsolutePath() + ") Chunk " + index
+							+ " at offset " + offset + " has an invalid count of zero chunks: " + count + '.');
+				zeros = count * preamble.getChunkSize();
+			}
+			offset += amt;
+			index++;
+			done = last;
+			return true;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			while (zeros == 0 && !out.hasRemaining())
+				if (!next())
+					return -1;
+			if (zeros != 0) {
+				int amt = FileIO.putZeros(dst, zeros);
+				zeros -= amt;
+				return amt;
+			}
+			int amt = Math.min(dst.remaining(), out.remaining());
+			dst.put(out.slice().limit(amt));
+			out.position(out.position() + amt);
+			return amt;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			if (open) {
+				open = false;
+				io.release(chunk);
+				io.release(out);
+			}
+		}
+	}
+
+	/**
+	 * Fills the destination buffer with the bytes remaining in the pending
+	 * buffer, then with bytes read from the channel.
+	 *
+	 * @return The number of bytes put into the destination, which is less than it
+	 *         had remaining only if the end of the channel was reached.
+	 */
+	private static int fill(ReadableByteChannel src, ByteBuffer pending, ByteBuffer dst) throws IOException {
+		int amt = Math.min(pending.remaining(), dst.remaining());
+		dst.put(pending.slice().limit(amt));
+		pending.position(pending.position() + amt);
+		return amt + FileIO.readFully(src, dst);
+	}
+
+	/**
+	 * Checks the tag of a single chunk, without producing any plaintext.
+	 *
+	 * @param cipher   A GCM {@link Cipher} (see {@link #cipher()}). Not shared
+	 *                 between threads.
+	 * @param spec     The AES key.
+	 * @param preamble The file's preamble.
+	 * @param index    The index of the chunk.
+	 * @param last     Whether the chunk is the last one in the file.
+	 * @param chunk    The chunk's bytes, tag included.
+	 * @param len      The length of the chunk.
+	 * @param scratch  A buffer at least as long as a chunk's plaintext, which is
+	 *                 overwritten.
+	 * @return <code>true</code> if the chunk is intact.
+	 */
+	static boolean check(Cipher cipher, SecretKeySpec spec, Preamble preamble, long index, boolean last, byte[] chunk,
+			int len, byte[] scratch) throws InvalidKeyException, InvalidAlgorithmParameterException {
+		init(cipher, Cipher.DECRYPT_MODE, spec, preamble, index, last);
+		try {
+			cipher.doFinal(chunk, 0, len, scratch, 0);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package pala.tools.fenc.processing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * A pool of direct {@link ByteBuffer}s shared by every engine in a run, which
+ * keeps the total memory held in buffers within a budget. Buffers are pooled in
+ * power of two sizes (of at least {@link #MIN_SIZE}), so a released buffer can
+ * be reused by any later request of a similar size without being allocated
+ * again.
+ * </p>
+ * <p>
+ * When a buffer is requested and the budget is used up, pooled buffers of
+ * other sizes are freed to make room. If that isn't enough, the requesting
+ * thread waits until other threads release their buffers. A thread that already
+ * holds buffers from the pool never waits, though, since the buffers it needs
+ * to finish its file may be the ones everyone else is waiting for; it is given
+ * a buffer beyond the budget instead. The budget therefore limits how many
+ * files are started at once, and is only exceeded by files already in
+ * progress. A single buffer larger than the whole budget is given out once no
+ * other buffers are in use.
+ * </p>
+ * <p>
+ * The pool counts how many requests were served from pooled buffers (hits),
+ * how many needed a new buffer (misses), and how long threads spent waiting
+ * for memory.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The smallest buffer the pool allocates.
+	 */
+	public static final int MIN_SIZE = 4096;
+
+	/**
+	 * The pool used by every {@link FileIO} that isn't given one of its own, so
+	 * that their buffers are reused too and can't grow without bound. Its budget
+	 * is a quarter of the maximum heap size, the same as the default
+	 * <code>--max-memory</code>.
+	 */
+	public static final BufferPool DEFAULT = new BufferPool(Runtime.getRuntime().maxMemory() / 4);
+
+	private final long budget;
+	private final TreeMap<Integer, ArrayDeque<ByteBuffer>> free = new TreeMap<>();
+	private final Map<ByteBuffer, Thread> inUse = new IdentityHashMap<>();
+	private final Map<Thread, Integer> holders = new HashMap<>();
+	/**
+	 * The bytes allocated by the pool that haven't been freed, whether in use or
+	 * pooled.
+	 */
+	private long allocated;
+	private long used, peak, hits, misses, waits, waitTime;
+
+	/**
+	 * @param budget The number of bytes that buffers may take up in total.
+	 */
+	public BufferPool(long budget) {
+		this.budget = budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	private static int sizeClass(int size) {
+		// Rounding anything larger up to a power of two would overflow.
+		return size <= MIN_SIZE ? MIN_SIZE : size > 1 << 30 ? size : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	/**
+	 * Takes a buffer from the pool, waiting for memory if the budget is used up.
+	 * The buffer's limit is <code>size</code>; its capacity may be larger.
+	 *
+	 * @param size The number of bytes needed.
+	 * @return The buffer, which must be {@link #give(ByteBuffer) given} back once
+	 *         no longer used.
+	 */
+	public synchronized ByteBuffer take(int size) {
+		int cap = sizeClass(size);
+		Thread thread = Thread.currentThread();
+		ByteBuffer buff = poll(cap);
+		if (buff != null)
+			hits++;
+		else {
+			misses++;
+			if (!holders.containsKey(thread) && used + cap > budget && used != 0) {
+				waits++;
+				long start = System.nanoTime();
+				boolean interrupted = false;
+				// Buffers may be pooled, but not in the size needed, so check what can be
+				// reused each time something is given back.
+				while ((buff = poll(cap)) == null && used + cap > budget && used != 0)
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Give the buffer out anyway; the caller sees the interrupt later.
+						interrupted = true;
+						break;
+					}
+				waitTime += System.nanoTime() - start;
+				if (interrupted)
+					thread.interrupt();
+			}
+			if (buff == null) {
+				trim(budget - cap);
+				allocated += cap;
+				buff = ByteBuffer.allocateDirect(cap);
+			}
+		}
+		used += cap;
+		peak = Math.max(peak, used);
+		inUse.put(buff, thread);
+		holders.merge(thread, 1, Integer::sum);
+		return buff.clear().limit(size);
+	}
+
+	private ByteBuffer poll(int cap) {
+		ArrayDeque<ByteBuffer> q = free.get(cap);
+		if (q == null)
+			return null;
+		ByteBuffer buff = q.poll();
+		if (q.isEmpty())
+			free.remove(cap);
+		return buff;
+	}
+
+	/**
+	 * Frees pooled buffers, largest first, until at most <code>limit</code> bytes
+	 * are allocated or there are no pooled buffers left.
+	 */
+	private void trim(long limit) {
+		while (allocated > limit && !free.isEmpty()) {
+			Map.Entry<Integer, ArrayDeque<ByteBuffer>> e = free.lastEntry();
+			e.getValue().poll();
+			allocated -= e.getKey();
+			if (e.getValue().isEmpty())
+				free.remove(e.getKey());
+		}
+	}
+
+	/**
+	 * Returns a buffer taken from the pool, so that it may be reused.
+	 *
+	 * @param buffer The buffer. It must not be used afterwards.
+	 */
+	public synchronized void give(ByteBuffer buffer) {
+		Thread holder = inUse.remove(buffer);
+		if (holder == null)
+			throw new IllegalArgumentException("The buffer was not taken from this pool, or was already given back.");
+		holders.computeIfPresent(holder, (t, c) -> c == 1 ? null : c - 1);
+		used -= buffer.capacity();
+		free.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>()).push(buffer);
+		trim(budget);
+		notifyAll();
+	}
+
+	/**
+	 * @return A summary of how the pool was used, for printing.
+	 */
+	public synchronized String stats() {
+		return hits + " hits, " + misses + " misses, " + waits + " waits for memory ("
+				+ String.format("%.1f", waitTime / 1e6) + " ms waiting), peak " + mb(peak) + " in use of a "
+				+ mb(budget) + " budget";
+	}
+
+	private static String mb(long bytes) {
+		return String.format("%.2f MB", bytes / 1048576d);
+	}
+
+}
@@ -0,0 +1,91 @@
+package pala.tools.fenc.processing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * A channel that reads another channel's data through a {@link Cipher}. It is
+ * the pull counterpart of
+ * {@link CipherProcessor#transform(Cipher, ReadableByteChannel, ByteBuffer, int, java.nio.channels.WritableByteChannel, FileIO)
+ * transform(...)}: the bytes remaining in the initial buffer are run through the
+ * cipher first, then the rest of the source channel, and the cipher is
+ * finalized when the source runs out. Closing the channel does not close the
+ * source.
+ *
+ * @author Palanath
+ *
+ */
+final class CipherChannel implements ReadableByteChannel {
+
+	private final Cipher cipher;
+	private final ReadableByteChannel src;
+	private final ByteBuffer in, out;
+	private final int bufferSize;
+	private final FileIO io;
+	private boolean done, open = true;
+
+	/**
+	 * @param cipher     An initialized {@link Cipher}.
+	 * @param src        The rest of the input.
+	 * @param in         A buffer holding the start of the input, ready to be read.
+	 *                   It is reused to read the rest of the input, and is still
+	 *                   owned by the caller.
+	 * @param bufferSize The number of bytes to read at a time.
+	 * @param io         The {@link FileIO} to allocate the output buffer from.
+	 */
+	CipherChannel(Cipher cipher, ReadableByteChannel src, ByteBuffer in, int bufferSize, FileIO io) {
+		this.cipher = cipher;
+		this.src = src;
+		this.in = in;
+		this.bufferSize = bufferSize;
+		this.io = io;
+		// Cipher may need up to two more blocks than it is given.
+		out = io.allocate(bufferSize + 32).flip();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		while (!out.hasRemaining()) {
+			if (done)
+				return -1;
+			if (!in.hasRemaining()) {
+				FileIO.readFully(src, FileIO.clear(in, bufferSize));
+				in.flip();
+			}
+			FileIO.clear(out, bufferSize + 32);
+			try {
+				if (in.hasRemaining())
+					cipher.update(in, out);
+				else {
+					cipher.doFinal(in, out);
+					done = true;
+				}
+			} catch (GeneralSecurityException e) {
+				throw new FileProcessingException(e.getLocalizedMessage(), e);
+			}
+			out.flip();
+		}
+		int amt = Math.min(dst.remaining(), out.remaining());
+		dst.put(out.slice().limit(amt));
+		out.position(out.position() + amt);
+		return amt;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		if (open) {
+			open = false;
+			io.release(out);
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package pala.tools.fenc.processing;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import pala.libs.generic.util.Hashing;
+
+/**
+ * <p>
+ * The key material derived from a key string: the 256-bit AES key itself and
+ * the file headers that identify files encrypted with that key in each
+ * {@link FileFormat}.
+ * </p>
+ * <p>
+ * Deriving these involves hashing, so a {@link CipherKey} should be created
+ * once and reused for every file processed with the same key.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class CipherKey {
+
+	private final byte[] key, header, authenticatedHeader;
+	private final SecretKeySpec secretKey;
+
+	public CipherKey(String key) {
+		this.key = Hashing.sha256(key);
+		header = Hashing.sha256(EncryptionProcessor.HASH_STRING + key + EncryptionProcessor.HASH_STRING);
+		authenticatedHeader = Hashing
+				.sha256(AuthenticatedFormat.HASH_STRING + key + AuthenticatedFormat.HASH_STRING);
+		secretKey = new SecretKeySpec(this.key, "AES");
+	}
+
+	/**
+	 * @return The SHA-256 hash of the key string, used as the AES key.
+	 */
+	public byte[] getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The AES key, ready to initialize a {@link javax.crypto.Cipher} with.
+	 */
+	public SecretKeySpec getSecretKey() {
+		return secretKey;
+	}
+
+	/**
+	 * @return The 32-byte header prepended to files encrypted with this key in
+	 *         the {@link FileFormat#CBC} format.
+	 */
+	public byte[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return The 32-byte header prepended to files encrypted with this key in
+	 *         the {@link FileFormat#AUTHENTICATED} format.
+	 */
+	public byte[] getAuthenticatedHeader() {
+		return authenticatedHeader;
+	}
+
+}
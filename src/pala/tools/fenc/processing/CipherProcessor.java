@@ -1,31 +1,62 @@
 package pala.tools.fenc.processing;
 
-import static pala.tools.fenc.processing.EncryptionProcessor.HASH_STRING;
-
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
+import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 
-import pala.libs.generic.util.Hashing;
 import pala.tools.fenc.logging.BranchLogger;
 import pala.tools.fenc.logging.MessageLogger;
 import pala.tools.fenc.logging.PeriodicSuccessLogger;
 
 public class CipherProcessor implements DirectoryProcessor {
 
+	/**
+	 * The smallest buffer the engines use, regardless of the buffer size
+	 * requested, so that a file's header always fits in the first buffer read.
+	 */
+	protected static final int MIN_BUFFER_SIZE = 64;
+
+	public enum Durability {
+		/**
+		 * Files are never forced to disk; a power loss may lose files processed
+		 * shortly before it, though they were reported as processed.
+		 */
+		NONE,
+		/**
+		 * Each file is forced to disk before it's reported, as is its temporary copy
+		 * before it is copied back and the journal after each step, so a power loss
+		 * never loses a file. This costs several waits for the disk per file.
+		 */
+		FILE,
+		/**
+		 * Processed files are forced to disk in groups by a {@link GroupCommit}, and
+		 * are only reported (and committed in the journal) once their group has been.
+		 * The temporary copy of a file processed in place is also forced, with the
+		 * journal, before it is copied back, in a group with the copies of the files
+		 * that other threads are processing at the same time. So like {@link #FILE},
+		 * a power loss never loses a file, but with fewer waits for the disk when
+		 * several files are processed at once.
+		 */
+		GROUP
+	}
+
 	protected interface Operator {
-		void operate(File f, File dest, int bufferSize, byte[] hdr, byte... key)
+		void operate(File f, File dest, int bufferSize, CipherKey key, FileIO io)
 				throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
 				InvalidAlgorithmParameterException, FileProcessingException;
 	}
 
-	private final byte[] keyHash, fileHeader;
+	private final CipherKey key;
 	private final int bufferSize;
 	private final BranchLogger logger;
 
@@ -39,8 +70,12 @@ public class CipherProcessor implements DirectoryProcessor {
 	}
 
 	protected CipherProcessor(String operation, Operator operator, String key, int bufferSize, BranchLogger logger) {
-		keyHash = Hashing.sha256(key);
-		fileHeader = Hashing.sha256(HASH_STRING + key + HASH_STRING);
+		this(operation, operator, new CipherKey(key), bufferSize, logger);
+	}
+
+	protected CipherProcessor(String operation, Operator operator, CipherKey key, int bufferSize,
+			BranchLogger logger) {
+		this.key = key;
 		this.bufferSize = bufferSize;
 		this.logger = logger;
 		this.operation = operation;
@@ -52,16 +87,129 @@ public class CipherProcessor implements DirectoryProcessor {
 	 */
 	private final String operation;
 	private final Operator operator;
+	private Journal journal;
+	private FileIO io = FileIO.PLAIN;
+	private TempFiles temps = TempFiles.SYSTEM;
+	private OutputTree output;
+	private Durability durability = Durability.NONE;
+	private GroupCommit group;
+
+	public FileIO getIO() {
+		return io;
+	}
+
+	/**
+	 * Sets the {@link FileIO} used to open files and allocate buffers, e.g. one
+	 * that uses direct I/O.
+	 * 
+	 * @param io The {@link FileIO}.
+	 */
+	public void setIO(FileIO io) {
+		this.io = io;
+	}
+
+	public TempFiles getTempFiles() {
+		return temps;
+	}
+
+	/**
+	 * Sets the {@link TempFiles} that temporary files are created with. By
+	 * default, {@link TempFiles#SYSTEM} is used.
+	 * 
+	 * @param temps The {@link TempFiles}.
+	 */
+	public void setTempFiles(TempFiles temps) {
+		this.temps = temps;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how processed files are made durable before they're reported.
+	 * {@link Durability#GROUP} requires a {@link #setGroupCommit(GroupCommit)
+	 * group commit}.
+	 * 
+	 * @param durability The {@link Durability}.
+	 */
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
+	public GroupCommit getGroupCommit() {
+		return group;
+	}
+
+	/**
+	 * Sets the {@link GroupCommit} that processed files are added to under
+	 * {@link Durability#GROUP}.
+	 * 
+	 * @param group The {@link GroupCommit}, or <code>null</code>.
+	 */
+	public void setGroupCommit(GroupCommit group) {
+		this.group = group;
+	}
+
+	public OutputTree getOutput() {
+		return output;
+	}
+
+	/**
+	 * Sets the {@link OutputTree} that files are processed into, instead of being
+	 * processed in place.
+	 * 
+	 * @param output The {@link OutputTree}, or <code>null</code> to process files
+	 *               in place.
+	 */
+	public void setOutput(OutputTree output) {
+		this.output = output;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets the {@link Journal} that each file's progress is recorded to. Files that
+	 * the journal reports as already committed are skipped without being opened.
+	 * 
+	 * @param journal The {@link Journal}, or <code>null</code> to disable
+	 *                journaling.
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
 
 	@Override
 	public final void processFile(File f) {
 		try {
-			if (f.length() == 0)
+			// Empty files are left as they are, but still get their (empty) copy in the
+			// output directory.
+			if (journal != null && journal.isCommitted(f) || output == null && f.length() == 0)
+				return;
+			io.startFile();
+			if (output != null) {
+				File dest;
+				try {
+					dest = output.map(f);
+				} catch (FileProcessingException e) {
+					logger.failure("OUTP", "The file " + f + " was not " + operation
+							+ "ed, since it can't be written to the output directory. [Err msg: "
+							+ e.getLocalizedMessage() + ']');
+					return;
+				}
+				// A file this run wrote, when the output directory is inside a source.
+				if (dest == null || !processInto(f, dest) || !commit(f, dest, null))
+					return;
+				logger.success(f);
 				return;
+			}
+
 			File temp;
 			try {
 				// Create a temp file as the destination for the encryption/decryption.
-				temp = File.createTempFile("enc", null);
+				temp = temps.create();
 			} catch (IOException e) {
 				logger.failure("TMPF",
 						"Failed to create the temporary file (for intermediary processing) that file, " + f
@@ -69,36 +217,76 @@ public class CipherProcessor implements DirectoryProcessor {
 								+ "ed.) [Err msg: " + e.getLocalizedMessage() + ']');
 				return;
 			}
-			temp.deleteOnExit();
 
+			// Set once the source starts being overwritten, after which the temp file may
+			// be the only good copy of the file and is only deleted once the file is
+			// committed.
+			boolean needed = false;
 			try {
-				operator.operate(f, temp, bufferSize, fileHeader, keyHash);
-			} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
-					| InvalidAlgorithmParameterException e) {
-				logger.failure("EFL", "Failed to initialize the " + operation + "ion algorithm while processing file: "
-						+ f + ". [Err msg: " + e.getLocalizedMessage() + ']');
-				return;
-			} catch (IOException e) {
-				logger.failure("IOEX", "Encountered a file in-out exception while trying to read or write and "
-						+ operation + " the file " + f + ". [Err msg: " + e.getLocalizedMessage() + ']');
-				return;
-			} catch (FileProcessingException e) {
-				logger.failure("ENEX",
-						"Encountered a" + (operation.startsWith("e") ? "n" : "") + ' ' + operation
-								+ "ion failure while trying to " + operation + " the file " + f + ". [Err msg: "
-								+ e.getLocalizedMessage() + ']');
-				return;
-			}
+				try {
+					if (journal != null)
+						journal.started(f, temp);
+					operator.operate(f, temp, bufferSize, key, io);
+					// The staged copy must be on disk before the source is overwritten, or
+					// there'd be nothing to recover from.
+					if (durability == Durability.FILE)
+						FileIO.force(temp);
+					// From here on, the temp file may be the only good copy, so it's renamed
+					// where neither the shutdown hook nor a later run's sweep deletes it.
+					temp = temps.keep(temp);
+					if (journal != null) {
+						if (durability == Durability.FILE)
+							FileIO.forceDirectory(temp.getParentFile());
+						journal.staged(f, temp, isSparseOutput());
+						if (durability == Durability.FILE)
+							journal.sync();
+					}
+					// Forces the staged copy, its directory and the journal together with
+					// those of other threads.
+					if (group != null)
+						group.await(temp);
+				} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+						| InvalidAlgorithmParameterException e) {
+					logger.failure("EFL", "Failed to initialize the " + operation
+							+ "ion algorithm while processing file: " + f + ". [Err msg: " + e.getLocalizedMessage()
+							+ ']');
+					return;
+				} catch (IOException e) {
+					logger.failure("IOEX", "Encountered a file in-out exception while trying to read or write and "
+							+ operation + " the file " + f + ". [Err msg: " + e.getLocalizedMessage() + ']');
+					return;
+				} catch (FileProcessingException e) {
+					logger.failure("ENEX",
+							"Encountered a" + (operation.startsWith("e") ? "n" : "") + ' ' + operation
+									+ "ion failure while trying to " + operation + " the file " + f + ". [Err msg: "
+									+ e.getLocalizedMessage() + ']');
+					return;
+				}
 
-			try {
-				Files.copy(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
-			} catch (IOException e) {
-				logger.failure("TMPC", "A" + (operation.startsWith("e") ? "n" : "") + ' ' + operation + "ed copy of "
-						+ f + " was written to a temporary file (" + temp
-						+ ") but an issue occurred when trying to copy that temporary file back over to the source file's location. [Err msg: "
-						+ e.getLocalizedMessage() + ']');
+				// If the program is killed while copying, the kept temp file is left behind
+				// for the journal (or the user) to recover from.
+				needed = true;
+				try {
+					io.copy(temp, f, isSparseOutput());
+					if (durability == Durability.FILE)
+						FileIO.force(f);
+				} catch (IOException e) {
+					logger.failure("TMPC", "A" + (operation.startsWith("e") ? "n" : "") + ' ' + operation
+							+ "ed copy of " + f + " was written to a temporary file (" + temp
+							+ ") but an issue occurred when trying to copy that temporary file back over to the source file's location. "
+							+ (journal == null ? "The temporary file was kept; copy it back manually."
+									: "The temporary file was kept and will be copied back when the journal is resumed.")
+							+ " [Err msg: " + e.getLocalizedMessage() + ']');
+					return;
+				}
+				// Deletes the temp file once the file is committed, which, with a group
+				// commit, is only once its group is on disk.
+				if (!commit(f, f, temp))
+					return;
+			} finally {
+				if (!needed)
+					temps.delete(temp);
 			}
-			temp.delete();
 
 		} catch (Exception e) {
 			logger.failure("UNKN",
@@ -109,6 +297,144 @@ public class CipherProcessor implements DirectoryProcessor {
 		logger.success(f);
 	}
 
+	/**
+	 * Determines whether the files this processor produces may have long runs of
+	 * zeros, which should be left as holes when a file is copied back over its
+	 * source.
+	 */
+	protected boolean isSparseOutput() {
+		return false;
+	}
+
+	/**
+	 * Records a processed file as committed in the journal, then deletes the
+	 * temporary copy it was written back from. With a {@link GroupCommit}, this
+	 * (and reporting the file) is deferred until the file's group has been forced
+	 * to disk, and the temporary copy is kept until then, so that the journal can
+	 * still complete the file if the power is lost first.
+	 * 
+	 * @param f       The processed file.
+	 * @param written The file it was written to.
+	 * @param temp    The {@link TempFiles#keep(File) kept} temporary copy that
+	 *                <code>written</code> was copied from, or <code>null</code>.
+	 * @return <code>true</code> if the file should be reported as processed now.
+	 */
+	private boolean commit(File f, File written, File temp) {
+		if (group != null) {
+			group.add(written, () -> {
+				if (committed(f, temp))
+					logger.success(f);
+			}, e -> {
+				// With a journal, the file is still staged, so resuming copies it back again.
+				boolean keep = journal != null && temp != null;
+				logger.failure("DURA", "The file " + f + " was " + operation + "ed, but " + written
+						+ " could not be forced to disk."
+						+ (keep ? " Its temporary copy (" + temp + ") was kept for the journal to resume from." : "")
+						+ " [Err msg: " + e.getLocalizedMessage() + ']');
+				if (!keep && temp != null)
+					temps.delete(temp);
+			});
+			return false;
+		}
+		return committed(f, temp);
+	}
+
+	private boolean committed(File f, File temp) {
+		if (journal != null)
+			try {
+				journal.committed(f);
+				if (durability == Durability.FILE)
+					journal.sync();
+			} catch (IOException e) {
+				// The journal still has the file as staged, so its copy is kept for resuming.
+				logger.failure("JRNL", "The file " + f + " was " + operation
+						+ "ed but could not be recorded as committed in the journal."
+						+ (temp == null ? "" : " Its temporary copy (" + temp + ") was kept.") + " [Err msg: "
+						+ e.getLocalizedMessage() + ']');
+				return false;
+			}
+		if (temp != null)
+			temps.delete(temp);
+		return true;
+	}
+
+	/**
+	 * Processes a file straight into its destination in the {@link OutputTree},
+	 * leaving the file itself untouched. A partially written destination is
+	 * deleted.
+	 * 
+	 * @return <code>true</code> if the file was processed.
+	 */
+	private boolean processInto(File f, File dest) {
+		try {
+			Files.createDirectories(dest.toPath().getParent());
+			// A destination that was started but not committed is deleted by the
+			// journal's recovery, like a temp file.
+			if (journal != null)
+				journal.started(f, dest);
+			if (f.length() == 0)
+				Files.write(dest.toPath(), new byte[0]);
+			else
+				operator.operate(f, dest, bufferSize, key, io);
+			output.preserve(f, dest);
+			if (durability == Durability.FILE) {
+				FileIO.force(dest);
+				FileIO.forceDirectory(dest.getParentFile());
+			}
+			return true;
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+				| InvalidAlgorithmParameterException e) {
+			logger.failure("EFL", "Failed to initialize the " + operation + "ion algorithm while processing file: "
+					+ f + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		} catch (IOException e) {
+			logger.failure("IOEX", "Encountered a file in-out exception while trying to read, " + operation
+					+ ", and write the file " + f + " to " + dest + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		} catch (FileProcessingException e) {
+			logger.failure("ENEX",
+					"Encountered a" + (operation.startsWith("e") ? "n" : "") + ' ' + operation
+							+ "ion failure while trying to " + operation + " the file " + f + ". [Err msg: "
+							+ e.getLocalizedMessage() + ']');
+		}
+		dest.delete();
+		return false;
+	}
+
+	/**
+	 * Runs the bytes remaining in <code>in</code>, followed by the rest of the
+	 * source channel, through the cipher, writing the result to the destination
+	 * channel. The cipher is then finalized and its last block written.
+	 * 
+	 * @param cipher     An initialized {@link Cipher}.
+	 * @param src        The rest of the input.
+	 * @param in         A buffer holding the start of the input, ready to be read.
+	 *                   It is reused to read the rest of the input.
+	 * @param bufferSize The number of bytes to read at a time.
+	 * @param dst        The destination.
+	 * @param io         The {@link FileIO} to allocate the output buffer from.
+	 * @throws FileProcessingException If the cipher fails, e.g. because the input
+	 *                                 is not validly padded ciphertext.
+	 */
+	protected static void transform(Cipher cipher, ReadableByteChannel src, ByteBuffer in, int bufferSize,
+			WritableByteChannel dst, FileIO io) throws IOException, FileProcessingException {
+		// Cipher may need up to two more blocks than it is given.
+		int outSize = bufferSize + 32;
+		ByteBuffer out = io.allocate(outSize);
+		try {
+			while (in.hasRemaining()) {
+				cipher.update(in, FileIO.clear(out, outSize));
+				FileIO.writeFully(dst, out.flip());
+				FileIO.readFully(src, FileIO.clear(in, bufferSize));
+				in.flip();
+			}
+			cipher.doFinal(in, FileIO.clear(out, outSize));
+			FileIO.writeFully(dst, out.flip());
+		} catch (GeneralSecurityException e) {
+			throw new FileProcessingException(e.getLocalizedMessage(), e);
+		} finally {
+			io.release(out);
+		}
+	}
+
 	public static CipherProcessor create(boolean encrypt, String key, int bufferSize, MessageLogger logger) {
 		return encrypt ? new EncryptionProcessor(key, bufferSize, logger)
 				: new DecryptionProcessor(key, bufferSize, logger);
@@ -118,4 +444,38 @@ public class CipherProcessor implements DirectoryProcessor {
 		return encrypt ? new EncryptionProcessor(key, bufferSize, logger)
 				: new DecryptionProcessor(key, bufferSize, logger);
 	}
+
+	/**
+	 * Creates an {@link EncryptionProcessor} that encrypts into the specified
+	 * {@link FileFormat}, or a {@link DecryptionProcessor} (which detects the
+	 * format of each file) if <code>encrypt</code> is <code>false</code>.
+	 */
+	public static CipherProcessor create(boolean encrypt, String key, int bufferSize, FileFormat format,
+			MessageLogger logger) {
+		return encrypt ? new EncryptionProcessor(key, bufferSize, format, logger)
+				: new DecryptionProcessor(key, bufferSize, logger);
+	}
+
+	public static CipherProcessor create(boolean encrypt, String key, int bufferSize, FileFormat format,
+			PeriodicSuccessLogger logger) {
+		return encrypt ? new EncryptionProcessor(key, bufferSize, format, logger)
+				: new DecryptionProcessor(key, bufferSize, logger);
+	}
+
+	/**
+	 * Creates a processor like {@link #create(boolean, String, int, FileFormat, MessageLogger)}
+	 * that uses an existing {@link CipherKey}, so that the key doesn't need to be
+	 * derived again.
+	 */
+	public static CipherProcessor create(boolean encrypt, CipherKey key, int bufferSize, FileFormat format,
+			MessageLogger logger) {
+		return encrypt ? new EncryptionProcessor(key, bufferSize, format, logger)
+				: new DecryptionProcessor(key, bufferSize, logger);
+	}
+
+	public static CipherProcessor create(boolean encrypt, CipherKey key, int bufferSize, FileFormat format,
+			PeriodicSuccessLogger logger) {
+		return encrypt ? new EncryptionProcessor(key, bufferSize, format, logger)
+				: new DecryptionProcessor(key, bufferSize, logger);
+	}
 }
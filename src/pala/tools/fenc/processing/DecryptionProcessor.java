@@ -1,9 +1,15 @@
 package pala.tools.fenc.processing;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -29,10 +35,212 @@ public class DecryptionProcessor extends CipherProcessor {
 		this(key, bufferSize, new BranchLogger(logger));
 	}
 
+	public DecryptionProcessor(CipherKey key, int bufferSize, MessageLogger logger) {
+		this(key, bufferSize, new BranchLogger(logger));
+	}
+
+	public DecryptionProcessor(CipherKey key, int bufferSize, PeriodicSuccessLogger logger) {
+		this(key, bufferSize, new BranchLogger(logger));
+	}
+
 	private DecryptionProcessor(String key, int bufferSize, BranchLogger logger) {
+		this(new CipherKey(key), bufferSize, logger);
+	}
+
+	/**
+	 * Creates a {@link DecryptionProcessor} that decrypts each file with whichever
+	 * key in the {@link KeySet} it was encrypted with.
+	 */
+	public DecryptionProcessor(KeySet keys, int bufferSize, MessageLogger logger) {
+		this(keys, bufferSize, new BranchLogger(logger));
+	}
+
+	public DecryptionProcessor(KeySet keys, int bufferSize, PeriodicSuccessLogger logger) {
+		this(keys, bufferSize, new BranchLogger(logger));
+	}
+
+	private DecryptionProcessor(CipherKey key, int bufferSize, BranchLogger logger) {
 		super("decrypt", DecryptionProcessor::decryptFile, key, bufferSize, logger);
 	}
 
+	private DecryptionProcessor(KeySet keys, int bufferSize, BranchLogger logger) {
+		// The operator picks the key for each file, so there's no single key.
+		super("decrypt", (f, dest, bs, key, io) -> decryptFile(f, dest, bs, keys, io), (CipherKey) null,
+				bufferSize, logger);
+	}
+
+	/**
+	 * Whether the last file decrypted on each thread was in the
+	 * {@link FileFormat#SPARSE sparse} format. A processor is shared by its
+	 * workers, and each file is decrypted and copied back on the same thread, so
+	 * this tells the copy back about the file just decrypted.
+	 */
+	private static final ThreadLocal<Boolean> SPARSE = ThreadLocal.withInitial(() -> false);
+
+	/**
+	 * Files decrypted from the sparse format may have had holes, so runs of zeros
+	 * are left as holes when they are copied back. Other files are copied back
+	 * without looking for zeros.
+	 */
+	@Override
+	protected boolean isSparseOutput() {
+		return SPARSE.get();
+	}
+
+	/**
+	 * Decrypts a file encrypted with the specified key in any {@link FileFormat}.
+	 * The format is determined from the file's header.
+	 * 
+	 * @param f          The encrypted file.
+	 * @param dest       The destination file to output the plaintext to.
+	 * @param bufferSize The buffer size used when reading the file.
+	 * @param key        The key the file was encrypted with.
+	 * @param io         The {@link FileIO} used to open the files and allocate
+	 *                   buffers.
+	 * @throws FileProcessingException If the file was not encrypted with the key,
+	 *                                 or, for the
+	 *                                 {@link FileFormat#AUTHENTICATED} format, if
+	 *                                 the file is corrupt.
+	 */
+	public static void decryptFile(File f, File dest, int bufferSize, CipherKey key, FileIO io)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, FileProcessingException {
+		bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		ByteBuffer in = io.allocate(bufferSize);
+		try (ReadableByteChannel src = io.openRead(f)) {
+			FileIO.readFully(src, in);
+			in.flip();
+			decrypt(src, in, f, dest, bufferSize, key, io);
+		} finally {
+			io.release(in);
+		}
+	}
+
+	/**
+	 * Decrypts a file encrypted with any of the keys in the {@link KeySet}, in any
+	 * {@link FileFormat}. The key and format are determined from the file's header,
+	 * and the key's {@link KeySet.Key#getCount() count} is incremented once the
+	 * file is decrypted.
+	 * 
+	 * @param f          The encrypted file.
+	 * @param dest       The destination file to output the plaintext to.
+	 * @param bufferSize The buffer size used when reading the file.
+	 * @param keys       The keys the file may have been encrypted with.
+	 * @param io         The {@link FileIO} used to open the files and allocate
+	 *                   buffers.
+	 * @throws FileProcessingException If the file was not encrypted with any of
+	 *                                 the keys, or, for the
+	 *                                 {@link FileFormat#AUTHENTICATED} format, if
+	 *                                 the file is corrupt.
+	 */
+	public static void decryptFile(File f, File dest, int bufferSize, KeySet keys, FileIO io)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, FileProcessingException {
+		bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		ByteBuffer in = io.allocate(bufferSize);
+		try (ReadableByteChannel src = io.openRead(f)) {
+			FileIO.readFully(src, in);
+			in.flip();
+			KeySet.Key key = keys.find(in);
+			if (key == null)
+				throw new FileProcessingException("[NENC](" + f.getAbsolutePath() + ") Detected a file, " + f
+						+ ", that was not encrypted with any of the keys. The file's header does not match the header written to files encrypted by this program with any of them. Skipping decryption attempt of this file... ");
+			decrypt(src, in, f, dest, bufferSize, key.getKey(), io);
+			key.counted();
+		} finally {
+			io.release(in);
+		}
+	}
+
+	/**
+	 * Decrypts the rest of a file whose first buffer has been read.
+	 */
+	private static void decrypt(ReadableByteChannel src, ByteBuffer in, File f, File dest, int bufferSize,
+			CipherKey key, FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		SPARSE.set(false);
+		if (detect(in, f, key) == FileFormat.CBC) {
+			Cipher cipher = initCBC(in, f, key);
+			try (WritableByteChannel dst = io.openWrite(dest)) {
+				transform(cipher, src, in, bufferSize, dst, io);
+			}
+		} else {
+			in.position(in.position() + key.getAuthenticatedHeader().length);
+			try (WritableByteChannel dst = io.openWrite(dest)) {
+				SPARSE.set(AuthenticatedFormat.decrypt(src, in, f, dst, key, io));
+			}
+		}
+	}
+
+	/**
+	 * Determines the {@link FileFormat} that a file was encrypted in with the
+	 * specified key, from the start of the file.
+	 * 
+	 * @param in  A buffer holding the start of the file, ready to be read. Its
+	 *            position is not changed.
+	 * @param f   The file, for error messages.
+	 * @param key The key.
+	 * @return The file's format.
+	 * @throws FileProcessingException If the file was not encrypted with the key.
+	 */
+	static FileFormat detect(ByteBuffer in, File f, CipherKey key) throws FileProcessingException {
+		if (FileIO.startsWith(in, key.getHeader()))
+			return FileFormat.CBC;
+		else if (FileIO.startsWith(in, key.getAuthenticatedHeader()))
+			return FileFormat.AUTHENTICATED;
+		else
+			throw new FileProcessingException("[NENC](" + f.getAbsolutePath() + ") Detected a file, " + f
+					+ ", that was not encrypted. The file's header does not match the form of the header written to files encrypted with this program. Skipping decryption attempt of this file... ");
+	}
+
+	/**
+	 * Reads the {@link FileFormat#CBC} preamble from the buffer and initializes a
+	 * {@link Cipher} to decrypt the rest of the file with.
+	 */
+	private static Cipher initCBC(ByteBuffer in, File f, CipherKey key) throws NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		if (in.remaining() < EncryptionProcessor.CBC_PREAMBLE_LENGTH)
+			throw new FileProcessingException("[NENC](" + f.getAbsolutePath()
+					+ ") Detected a file that was not encrypted. The file is too short to contain the initialization vector written to files encrypted by this program.");
+		byte[] preamble = new byte[EncryptionProcessor.CBC_PREAMBLE_LENGTH];
+		in.get(preamble);
+		return initCBC(preamble, key);
+	}
+
+	/**
+	 * Returns a channel that reads the plaintext of a file encrypted with the
+	 * specified key in any {@link FileFormat}, without writing anything.
+	 * 
+	 * @param src        The encrypted file.
+	 * @param in         A buffer holding the start of the file, ready to be read.
+	 *                   It must have been filled up to <code>bufferSize</code>
+	 *                   bytes, unless the file is shorter. It is reused to read the
+	 *                   rest of the file, and is still owned by the caller.
+	 * @param f          The file, for error messages.
+	 * @param bufferSize The number of bytes to read from the file at a time.
+	 * @param key        The key the file was encrypted with.
+	 * @param io         The {@link FileIO} to allocate buffers from.
+	 * @return The plaintext. Closing it does not close <code>src</code>.
+	 * @throws FileProcessingException If the file was not encrypted with the key.
+	 *                                 Reading the channel throws a
+	 *                                 {@link FileProcessingException} if the file
+	 *                                 turns out to be corrupt.
+	 */
+	public static ReadableByteChannel decrypting(ReadableByteChannel src, ByteBuffer in, File f, int bufferSize,
+			CipherKey key, FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		if (detect(in, f, key) == FileFormat.CBC)
+			return new CipherChannel(initCBC(in, f, key), src, in, bufferSize, io);
+		in.position(in.position() + key.getAuthenticatedHeader().length);
+		return AuthenticatedFormat.decrypting(src, in, f, key, io);
+	}
+
+	public static void decryptFile(File f, File dest, int bufferSize, CipherKey key)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, FileProcessingException {
+		decryptFile(f, dest, bufferSize, key, FileIO.PLAIN);
+	}
+
 	public static void decryptFile(File f, File dest, int bufferSize, byte[] hdr, byte... key)
 			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
 			InvalidAlgorithmParameterException, FileProcessingException {
@@ -50,20 +258,62 @@ public class DecryptionProcessor extends CipherProcessor {
 				amt += readcnt;
 			}
 
-			byte[] iv = Arrays.copyOfRange(header, hdr.length, 16 + hdr.length);
 			for (int i = 0; i < hdr.length; i++)
 				if (header[i] != hdr[i])
 					throw new FileProcessingException("[NENC](" + f.getAbsolutePath() + ") Detected a file, " + f
 							+ ", that was not encrypted. The file's header does not match the form of the header written to files encrypted with this program. Skipping decryption attempt of this file... ");
 
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
-			try (CipherInputStream cis = new CipherInputStream(fis, cipher)) {
-				byte[] buff = new byte[bufferSize];
-				try (FileOutputStream fos = new FileOutputStream(dest)) {
-					while ((amt = cis.read(buff)) != -1)
-						fos.write(buff, 0, amt);
-				}
+			decryptCBC(new SequenceInputStream(
+					new ByteArrayInputStream(header, hdr.length, header.length - hdr.length), fis), f, dest, bufferSize,
+					key);
+		}
+	}
+
+	/**
+	 * Checks the preamble of data encrypted in the {@link FileFormat#CBC} format
+	 * against the key, then creates a {@link Cipher} that decrypts the ciphertext
+	 * following it.
+	 * 
+	 * @param preamble The first {@link EncryptionProcessor#CBC_PREAMBLE_LENGTH}
+	 *                 bytes of the encrypted data.
+	 * @param key      The key the data was encrypted with.
+	 * @return The initialized {@link Cipher}.
+	 * @throws FileProcessingException If the data was not encrypted with the key
+	 *                                 in the {@link FileFormat#CBC} format.
+	 */
+	public static Cipher initCBC(byte[] preamble, CipherKey key) throws NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		byte[] header = Arrays.copyOf(preamble, 32);
+		if (!Arrays.equals(header, key.getHeader()))
+			throw new FileProcessingException(Arrays.equals(header, key.getAuthenticatedHeader())
+					? "[UNSP] The data was encrypted in the authenticated format, which can only be decrypted from a file."
+					: "[NENC] The data was not encrypted with the provided key; it does not start with the header written by this program.");
+		Cipher cipher = Cipher.getInstance(EncryptionProcessor.CBC_TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, key.getSecretKey(), new IvParameterSpec(preamble, 32, 16));
+		return cipher;
+	}
+
+	/**
+	 * Decrypts a file in the {@link FileFormat#CBC} format whose header has
+	 * already been read and checked. The stream must be positioned at the
+	 * initialization vector.
+	 */
+	private static void decryptCBC(InputStream in, File f, File dest, int bufferSize, byte[] key)
+			throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, FileProcessingException {
+		byte[] iv = new byte[16];
+		if (AuthenticatedFormat.readFully(in, iv, 0, iv.length) < iv.length)
+			throw new FileProcessingException("[NENC](" + f.getAbsolutePath()
+					+ ") Detected a file that was not encrypted. The file is too short to contain the initialization vector written to files encrypted by this program.");
+
+		Cipher cipher = Cipher.getInstance(EncryptionProcessor.CBC_TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		try (CipherInputStream cis = new CipherInputStream(in, cipher)) {
+			byte[] buff = new byte[bufferSize];
+			int amt;
+			try (FileOutputStream fos = new FileOutputStream(dest)) {
+				while ((amt = cis.read(buff)) != -1)
+					fos.write(buff, 0, amt);
 			}
 		}
 	}
@@ -1,6 +1,7 @@
 package pala.tools.fenc.processing;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Iterator;
 
 import pala.libs.generic.JavaTools;
@@ -18,6 +19,19 @@ public interface DirectoryProcessor {
 	 */
 	void processFile(File file);
 
+	/**
+	 * Processes the provided {@link File}, whose attributes have already been
+	 * read (e.g. while walking its directory), so that processors that need them
+	 * don't have to read them again. By default, this just calls
+	 * {@link #processFile(File)}.
+	 * 
+	 * @param file  The file to process.
+	 * @param attrs The file's attributes.
+	 */
+	default void processFile(File file, BasicFileAttributes attrs) {
+		processFile(file);
+	}
+
 	default void process(File file) {
 		if (file.isDirectory())
 			process(file.listFiles());
@@ -0,0 +1,296 @@
+package pala.tools.fenc.processing;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * Watches directory trees for files being created or modified, and gives each
+ * such file to a {@link DirectoryProcessor} once it has stopped changing.
+ * Directories created inside a watched tree are watched as well, and the files
+ * already in them are processed.
+ * </p>
+ * <p>
+ * A file is only processed once no event has been seen for it, and its size
+ * and modification time have not changed, for the settle delay. Bursts of
+ * events for the same file (as produced by a program writing it in pieces) are
+ * coalesced into one. After a file is processed, its size and modification time
+ * are remembered, so that the events caused by the processor rewriting it don't
+ * cause it to be processed again.
+ * </p>
+ * <p>
+ * When the watched trees are first added, every file already in them is
+ * processed, and if the operating system drops events, the trees are scanned
+ * again. Files that were already processed are skipped in both cases.
+ * </p>
+ * <p>
+ * Like a {@link Traversal}, the watcher can be given a {@link PathFilter}: the
+ * files and directories in a watched tree are checked against it by their
+ * paths relative to the tree, and excluded directories are not watched at all.
+ * Regular files added directly are not filtered.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class DirectoryWatcher {
+
+	/**
+	 * The size and modification time of a file.
+	 */
+	private static final class Stamp {
+		private final long size, modified;
+
+		private Stamp(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		private static Stamp of(Path file) {
+			File f = file.toFile();
+			return new Stamp(f.length(), f.lastModified());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Stamp && ((Stamp) obj).size == size && ((Stamp) obj).modified == modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(modified);
+		}
+	}
+
+	private static final class Pending {
+		private final long deadline;
+		private final Stamp stamp;
+
+		private Pending(long deadline, Stamp stamp) {
+			this.deadline = deadline;
+			this.stamp = stamp;
+		}
+	}
+
+	private final DirectoryProcessor processor;
+	private final long settleDelay;
+	private final MessageLogger logger;
+	private final PathFilter filter;
+	private final WatchService service;
+	private final List<Path> roots = new ArrayList<>();
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Map<Path, Pending> pending = new HashMap<>();
+	/**
+	 * Deadlines of pending files, earliest first. A path's entry is stale if its
+	 * deadline differs from the one in {@link #pending}.
+	 */
+	private final PriorityQueue<Map.Entry<Long, Path>> deadlines = new PriorityQueue<>(Map.Entry.comparingByKey());
+	private final Map<Path, Stamp> processed = new HashMap<>();
+
+	/**
+	 * @param processor   The {@link DirectoryProcessor} to give settled files to.
+	 * @param settleDelay The number of milliseconds a file must go unchanged
+	 *                    before it's processed.
+	 * @param logger      The logger to report watching failures to.
+	 * @param filter      The {@link PathFilter} that decides which files and
+	 *                    directories in the watched trees are processed and
+	 *                    watched, or <code>null</code> to watch everything.
+	 */
+	public DirectoryWatcher(DirectoryProcessor processor, long settleDelay, MessageLogger logger, PathFilter filter)
+			throws IOException {
+		this.processor = processor;
+		this.settleDelay = settleDelay;
+		this.logger = logger;
+		this.filter = filter;
+		service = FileSystems.getDefault().newWatchService();
+	}
+
+	public DirectoryWatcher(DirectoryProcessor processor, long settleDelay, MessageLogger logger) throws IOException {
+		this(processor, settleDelay, logger, null);
+	}
+
+	/**
+	 * Starts watching the specified directory tree, and schedules every file
+	 * already in it. If a regular file is specified, it is just scheduled.
+	 */
+	public void add(File root) {
+		Path path = root.toPath().toAbsolutePath();
+		if (Files.isDirectory(path)) {
+			roots.add(path);
+			register(path, 0);
+		} else if (Files.isRegularFile(path))
+			schedule(path, 0);
+		else
+			processor.handleAbnormalFileObject(root);
+	}
+
+	/**
+	 * Registers the tree rooted at the specified directory and schedules the files
+	 * in it to be processed after the specified delay.
+	 */
+	private void register(Path dir, long delay) {
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+					if (!d.equals(dir) && !accepts(d, attrs))
+						return FileVisitResult.SKIP_SUBTREE;
+					// Registering a directory again returns its existing key.
+					directories.put(d.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile() && accepts(file, attrs))
+						schedule(file, delay);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					logger.failure("WTCH",
+							"Failed to watch " + file + ". [Err msg: " + exc.getLocalizedMessage() + ']');
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.failure("WTCH", "Failed to watch " + dir + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Checks a file or directory inside a watched tree against the filter, by its
+	 * path relative to the innermost watched tree containing it.
+	 */
+	private boolean accepts(Path path, BasicFileAttributes attrs) {
+		if (filter == null)
+			return true;
+		Path root = null;
+		for (Path r : roots)
+			if (path.startsWith(r) && (root == null || r.getNameCount() > root.getNameCount()))
+				root = r;
+		return root == null || path.equals(root) || filter.accepts(root.relativize(path), attrs);
+	}
+
+	private boolean accepts(Path path) {
+		if (filter == null)
+			return true;
+		try {
+			return accepts(path, Files.readAttributes(path, BasicFileAttributes.class));
+		} catch (IOException e) {
+			// Gone already; the next event for it decides.
+			return false;
+		}
+	}
+
+	/**
+	 * Schedules the file to be processed after the specified delay, replacing any
+	 * earlier schedule for it.
+	 */
+	private void schedule(Path file, long delay) {
+		long deadline = System.currentTimeMillis() + delay;
+		pending.put(file, new Pending(deadline, Stamp.of(file)));
+		deadlines.add(Map.entry(deadline, file));
+	}
+
+	/**
+	 * Watches the added trees and processes files as they settle, until the
+	 * calling thread is interrupted.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				processSettled();
+				Map.Entry<Long, Path> next = deadlines.peek();
+				WatchKey key = next == null ? service.take()
+						: service.poll(Math.max(0, next.getKey() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				for (; key != null; key = service.poll())
+					handle(key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				service.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Path dir = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				logger.failure("WTCH", "Events were lost; rescanning all watched directories.");
+				for (Path root : roots)
+					register(root, settleDelay);
+				continue;
+			}
+			if (dir == null)
+				continue;
+			Path path = dir.resolve((Path) event.context());
+			// Events are looked at after the fact, so check what the path is now. (A
+			// file that is replaced, e.g. by an editor saving it, produces a deletion
+			// event even though the file still exists.)
+			if (Files.isDirectory(path)) {
+				if (event.kind() == ENTRY_CREATE && accepts(path))
+					register(path, settleDelay);
+			} else if (Files.isRegularFile(path)) {
+				if (accepts(path))
+					schedule(path, settleDelay);
+			}
+			else {
+				processed.remove(path);
+				pending.remove(path);
+			}
+		}
+		if (!key.reset())
+			directories.remove(key);
+	}
+
+	private void processSettled() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long, Path> next; (next = deadlines.peek()) != null && next.getKey() <= now;) {
+			deadlines.poll();
+			Path file = next.getValue();
+			Pending p = pending.get(file);
+			if (p == null || p.deadline != next.getKey())
+				continue;
+			pending.remove(file);
+			if (!Files.isRegularFile(file))
+				continue;
+			Stamp stamp = Stamp.of(file);
+			if (!stamp.equals(p.stamp))
+				// Still being written, even though no event was seen.
+				schedule(file, settleDelay);
+			else if (!stamp.equals(processed.get(file))) {
+				processor.processFile(file.toFile());
+				processed.put(file, Stamp.of(file));
+			}
+		}
+	}
+
+}
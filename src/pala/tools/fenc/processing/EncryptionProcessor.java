@@ -1,9 +1,16 @@
 package pala.tools.fenc.processing;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -13,6 +20,7 @@ import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -30,6 +38,13 @@ import pala.tools.fenc.logging.PeriodicSuccessLogger;
 public class EncryptionProcessor extends CipherProcessor {
 
 	public static final String HASH_STRING = "Encrypted by FEnc.";
+	public static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+	/**
+	 * The length of everything preceding the ciphertext in the
+	 * {@link FileFormat#CBC} format: the 32-byte header and the 16-byte
+	 * initialization vector.
+	 */
+	public static final int CBC_PREAMBLE_LENGTH = 48;
 
 	public EncryptionProcessor(String key, int bufferSize, MessageLogger logger) {
 		this(key, bufferSize, new BranchLogger(logger));
@@ -39,8 +54,32 @@ public class EncryptionProcessor extends CipherProcessor {
 		this(key, bufferSize, new BranchLogger(logger));
 	}
 
+	public EncryptionProcessor(String key, int bufferSize, FileFormat format, MessageLogger logger) {
+		this(key, bufferSize, format, new BranchLogger(logger));
+	}
+
+	public EncryptionProcessor(String key, int bufferSize, FileFormat format, PeriodicSuccessLogger logger) {
+		this(key, bufferSize, format, new BranchLogger(logger));
+	}
+
+	public EncryptionProcessor(CipherKey key, int bufferSize, FileFormat format, MessageLogger logger) {
+		this(key, bufferSize, format, new BranchLogger(logger));
+	}
+
+	public EncryptionProcessor(CipherKey key, int bufferSize, FileFormat format, PeriodicSuccessLogger logger) {
+		this(key, bufferSize, format, new BranchLogger(logger));
+	}
+
 	private EncryptionProcessor(String key, int bufferSize, BranchLogger logger) {
-		super("encrypt", EncryptionProcessor::encryptFile, key, bufferSize, logger);
+		this(key, bufferSize, FileFormat.CBC, logger);
+	}
+
+	private EncryptionProcessor(String key, int bufferSize, FileFormat format, BranchLogger logger) {
+		this(new CipherKey(key), bufferSize, format, logger);
+	}
+
+	private EncryptionProcessor(CipherKey key, int bufferSize, FileFormat format, BranchLogger logger) {
+		super("encrypt", (f, dest, bs, k, io) -> encryptFile(f, dest, bs, k, format, io), key, bufferSize, logger);
 	}
 
 	/**
@@ -98,24 +137,118 @@ public class EncryptionProcessor extends CipherProcessor {
 				} // If the header is not present, we need to encrypt the bytes we read.
 			}
 
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			SecureRandom ran = new SecureRandom();
-			byte[] iv = new byte[16];
-			ran.nextBytes(iv);
-			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
-
 			try (FileOutputStream fileOutputStream = new FileOutputStream(dest)) {
-				fileOutputStream.write(header);
-				fileOutputStream.write(iv);
-				try (CipherOutputStream cos = new CipherOutputStream(fileOutputStream, cipher)) {
-					// Encrypt already scanned bytes.
-					cos.write(headerbf, 0, amt);
-					byte buff[] = new byte[bufferSize];
-					while ((amt = fis.read(buff)) != -1)
-						cos.write(buff, 0, amt);
-				}
+				writeCBC(new SequenceInputStream(new ByteArrayInputStream(headerbf, 0, amt), fis), fileOutputStream,
+						bufferSize, header, key);
 			}
 		}
 	}
 
+	/**
+	 * Encrypts a file into the specified {@link FileFormat}. This behaves like
+	 * {@link #encryptFile(File, File, int, byte[], byte...)}, except that a file
+	 * is considered to be already encrypted if it starts with the header of any
+	 * {@link FileFormat} for the key.
+	 * 
+	 * @param f          The source file to read bytes from.
+	 * @param dest       The destination file to output the encryption result to.
+	 * @param bufferSize The buffer size, which is also the chunk size of the
+	 *                   {@link FileFormat#AUTHENTICATED} format.
+	 * @param key        The key used for the encryption.
+	 * @param format     The format to encrypt into.
+	 * @param io         The {@link FileIO} used to open the files and allocate
+	 *                   buffers.
+	 * @throws FileProcessingException if the file is already encrypted.
+	 */
+	public static void encryptFile(File f, File dest, int bufferSize, CipherKey key, FileFormat format, FileIO io)
+			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, IOException, FileProcessingException {
+		bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		ByteBuffer in = io.allocate(bufferSize);
+		try (ReadableByteChannel src = io.openRead(f)) {
+			FileIO.readFully(src, in);
+			in.flip();
+			if (FileIO.startsWith(in, key.getHeader()) || FileIO.startsWith(in, key.getAuthenticatedHeader()))
+				throw new FileProcessingException("Detected that file is already encrypted. Skipping...");
+
+			try (WritableByteChannel dst = io.openWrite(dest)) {
+				encrypt(src, in, dst, bufferSize, key, format, io);
+			}
+		} finally {
+			io.release(in);
+		}
+	}
+
+	/**
+	 * Encrypts the plaintext read from a channel into the specified
+	 * {@link FileFormat}, writing the result, preamble included, to the
+	 * destination channel.
+	 * 
+	 * @param src        The rest of the plaintext.
+	 * @param in         A buffer holding the start of the plaintext, ready to be
+	 *                   read. It must have been filled up to
+	 *                   <code>bufferSize</code> bytes, unless the plaintext is
+	 *                   shorter. It is reused to read the rest of the plaintext.
+	 * @param dst        The destination.
+	 * @param bufferSize The buffer size, which is also the chunk size of the
+	 *                   {@link FileFormat#AUTHENTICATED} format.
+	 * @param key        The key to encrypt with.
+	 * @param format     The format to encrypt into.
+	 * @param io         The {@link FileIO} to allocate buffers from.
+	 */
+	public static void encrypt(ReadableByteChannel src, ByteBuffer in, WritableByteChannel dst, int bufferSize,
+			CipherKey key, FileFormat format, FileIO io) throws NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, IOException, FileProcessingException {
+		if (format != FileFormat.CBC)
+			AuthenticatedFormat.encrypt(src, in, dst, bufferSize, key, io, format == FileFormat.SPARSE);
+		else {
+			Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+			FileIO.writeFully(dst, ByteBuffer.wrap(initCBC(cipher, key.getHeader(), key.getSecretKey())));
+			transform(cipher, src, in, bufferSize, dst, io);
+		}
+	}
+
+	public static void encryptFile(File f, File dest, int bufferSize, CipherKey key, FileFormat format)
+			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, IOException, FileProcessingException {
+		encryptFile(f, dest, bufferSize, key, format, FileIO.PLAIN);
+	}
+
+	/**
+	 * Initializes the provided {@link #CBC_TRANSFORMATION} {@link Cipher} for
+	 * encryption with a new random initialization vector, and returns the
+	 * preamble that must precede the ciphertext: the header followed by the
+	 * initialization vector.
+	 * 
+	 * @param cipher The {@link Cipher} to initialize.
+	 * @param header The 32-byte header, e.g. {@link CipherKey#getHeader()}.
+	 * @param key    The AES key.
+	 * @return The {@link #CBC_PREAMBLE_LENGTH} byte preamble.
+	 */
+	public static byte[] initCBC(Cipher cipher, byte[] header, SecretKey key)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] preamble = Arrays.copyOf(header, CBC_PREAMBLE_LENGTH), iv = new byte[16];
+		new SecureRandom().nextBytes(iv);
+		System.arraycopy(iv, 0, preamble, header.length, iv.length);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		return preamble;
+	}
+
+	/**
+	 * Writes the header, a random initialization vector, then everything remaining
+	 * in the provided {@link InputStream} encrypted with AES in CBC mode.
+	 */
+	private static void writeCBC(InputStream in, OutputStream out, int bufferSize, byte[] header, byte[] key)
+			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidAlgorithmParameterException, IOException {
+		Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+		out.write(initCBC(cipher, header, new SecretKeySpec(key, "AES")));
+		try (CipherOutputStream cos = new CipherOutputStream(out, cipher)) {
+			byte buff[] = new byte[bufferSize];
+			int amt;
+			while ((amt = in.read(buff)) != -1)
+				cos.write(buff, 0, amt);
+		}
+	}
+
 }
@@ -0,0 +1,31 @@
+package pala.tools.fenc.processing;
+
+/**
+ * The formats that files can be encrypted into. Decryption detects the format
+ * of each file from its header, so the format only needs to be chosen when
+ * encrypting.
+ *
+ * @author Palanath
+ *
+ */
+public enum FileFormat {
+	/**
+	 * The original format: the 32-byte header, a 16-byte initialization vector,
+	 * then the whole file encrypted with AES in CBC mode. Corruption of the file
+	 * can't be detected.
+	 */
+	CBC,
+	/**
+	 * The format written by {@link AuthenticatedFormat}: the file is split into
+	 * chunks, each encrypted with AES in GCM mode, so that every chunk carries an
+	 * authentication tag that can be checked independently.
+	 */
+	AUTHENTICATED,
+	/**
+	 * The authenticated format, in which chunks of the file that are entirely
+	 * zero (such as the holes of a sparse file) are recorded by count rather than
+	 * encrypted. They are restored, as holes where possible, when the file is
+	 * decrypted.
+	 */
+	SPARSE
+}
@@ -0,0 +1,780 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * <p>
+ * Opens the files read and written by the cipher and hash engines, and
+ * allocates the buffers they use.
+ * </p>
+ * <p>
+ * In direct mode, files are opened with {@link ExtendedOpenOption#DIRECT}
+ * (<code>O_DIRECT</code>), so that reading and writing them bypasses the
+ * operating system's page cache. Bulk runs then don't evict the cached pages of
+ * other programs on the machine. Direct I/O requires reads and writes to be
+ * aligned to the file system's block size, so the channels returned in direct
+ * mode transfer whole, aligned blocks through a buffer of their own, and the
+ * final partial block of a written file is padded then truncated away. If the
+ * file system refuses direct I/O, the file is transparently opened normally
+ * instead.
+ * </p>
+ * <p>
+ * A {@link FileIO} may also have a {@link Throttle}, which all reads and writes
+ * through the channels it opens count against, and which
+ * {@link #startFile()} draws a file from.
+ * </p>
+ * <p>
+ * Buffers are taken from a {@link BufferPool}, so that they are reused from
+ * file to file and the memory they take up stays within the pool's budget. A
+ * {@link FileIO} that isn't given a pool uses {@link BufferPool#DEFAULT}.
+ * </p>
+ * <p>
+ * With asynchronous writes, the channels returned by {@link #openWrite(File)}
+ * collect what is written to them in one buffer while the previous buffer is
+ * written out by another thread, so that the engine keeps reading and
+ * processing the file while its output is being written. This only helps when
+ * the file is written to a different device than it's read from.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class FileIO {
+
+	/**
+	 * The alignment used when the block size of a file system can't be
+	 * determined.
+	 */
+	private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	/**
+	 * The size of each of the two buffers of an asynchronous write channel.
+	 */
+	private static final int ASYNC_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * A buffer of zeros, which is never written to, to compare against and
+	 * write from.
+	 */
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(65536).asReadOnlyBuffer();
+
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "fenc-writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * A {@link FileIO} that reads and writes files normally.
+	 */
+	public static final FileIO PLAIN = new FileIO(false, DEFAULT_BLOCK_SIZE * 16);
+
+	private final boolean direct;
+	private final int transferSize;
+	private final Throttle throttle;
+	private final BufferPool pool;
+	private final boolean asyncWrites;
+
+	/**
+	 * @param direct       Whether to bypass the page cache.
+	 * @param transferSize In direct mode, the minimum number of bytes read or
+	 *                     written per system call. It is rounded up to a multiple
+	 *                     of the block size.
+	 * @param throttle     The {@link Throttle} to limit I/O with, or
+	 *                     <code>null</code> for none.
+	 * @param pool         The {@link BufferPool} to take buffers from, or
+	 *                     <code>null</code> to use {@link BufferPool#DEFAULT}.
+	 * @param asyncWrites  Whether files are written by another thread while the
+	 *                     engine carries on.
+	 */
+	public FileIO(boolean direct, int transferSize, Throttle throttle, BufferPool pool, boolean asyncWrites) {
+		this.direct = direct;
+		this.transferSize = transferSize;
+		this.throttle = throttle;
+		this.pool = pool == null ? BufferPool.DEFAULT : pool;
+		this.asyncWrites = asyncWrites;
+	}
+
+	public FileIO(boolean direct, int transferSize, Throttle throttle, BufferPool pool) {
+		this(direct, transferSize, throttle, pool, false);
+	}
+
+	public FileIO(boolean direct, int transferSize, Throttle throttle) {
+		this(direct, transferSize, throttle, null);
+	}
+
+	public FileIO(boolean direct, int transferSize) {
+		this(direct, transferSize, null);
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public Throttle getThrottle() {
+		return throttle;
+	}
+
+	public BufferPool getPool() {
+		return pool;
+	}
+
+	public boolean isAsyncWrites() {
+		return asyncWrites;
+	}
+
+	/**
+	 * Determines whether this {@link FileIO} reads and writes files exactly as
+	 * {@link Files} would, in which case callers may use {@link Files} directly.
+	 */
+	public boolean isPlain() {
+		return !direct && throttle == null;
+	}
+
+	/**
+	 * Called before each file is processed. Blocks while the {@link Throttle}, if
+	 * any, does not allow another file to be started.
+	 */
+	public void startFile() throws IOException {
+		if (throttle != null)
+			throttle.acquireFile();
+	}
+
+	/**
+	 * Allocates a buffer for the engines to process data in. The buffer's limit
+	 * is <code>size</code>; its capacity may be larger. This may block until the
+	 * {@link BufferPool} has memory to spare.
+	 *
+	 * @param size The number of bytes needed.
+	 * @return The buffer, which should be {@link #release(ByteBuffer) released}
+	 *         once no longer used.
+	 */
+	public ByteBuffer allocate(int size) {
+		return pool.take(size);
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #allocate(int)} once it is no longer
+	 * used.
+	 *
+	 * @param buffer The buffer, or <code>null</code>, in which case nothing
+	 *               happens.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null)
+			pool.give(buffer);
+	}
+
+	public ReadableByteChannel openRead(File f) throws IOException {
+		return throttle == null ? openRead0(f) : throttle.wrap(openRead0(f));
+	}
+
+	private ReadableByteChannel openRead0(File f) throws IOException {
+		if (direct) {
+			FileChannel channel = openDirect(f.toPath(), StandardOpenOption.READ);
+			if (channel != null) {
+				int block = blockSize(f.toPath());
+				return new DirectReadChannel(f.toPath(), channel, transferSize(block), block, this);
+			}
+		}
+		return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Opens a file for writing, creating it if it doesn't exist and discarding
+	 * its contents otherwise.
+	 */
+	public WritableByteChannel openWrite(File f) throws IOException {
+		WritableByteChannel channel = throttle == null ? openWrite0(f) : throttle.wrap(openWrite0(f));
+		return asyncWrites ? new AsyncWriteChannel(channel, this) : channel;
+	}
+
+	private WritableByteChannel openWrite0(File f) throws IOException {
+		if (direct) {
+			FileChannel channel = openDirect(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			if (channel != null) {
+				int block = blockSize(f.toPath());
+				return new DirectWriteChannel(f.toPath(), channel, transferSize(block), block, this);
+			}
+		}
+		return FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Copies a file over another, replacing its contents. The destination is
+	 * rewritten in place rather than replaced, so it remains the same file: other
+	 * hard links to it see the new contents, and its permissions are kept.
+	 * <p>
+	 * A destination that can't be opened for writing, such as a read-only file,
+	 * is {@link #replace(File, File, boolean) replaced} instead.
+	 * </p>
+	 */
+	public void copy(File src, File dest) throws IOException {
+		copy(src, dest, false);
+	}
+
+	/**
+	 * Copies a file over another like {@link #copy(File, File)}. If
+	 * <code>sparse</code> is <code>true</code>, blocks of the source that are
+	 * entirely zero are {@link #writeZeros(WritableByteChannel, long) skipped}
+	 * rather than written, so that they become holes in the destination where
+	 * possible.
+	 */
+	public void copy(File src, File dest, boolean sparse) throws IOException {
+		if (dest.exists() && !Files.isWritable(dest.toPath())) {
+			replace(src, dest, sparse);
+			return;
+		}
+		if (isPlain() && !sparse) {
+			try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE,
+							StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (long pos = 0, size = in.size(); pos < size;)
+					pos += in.transferTo(pos, size - pos, out);
+			}
+			return;
+		}
+		ByteBuffer buff = allocate(transferSize);
+		try (ReadableByteChannel in = openRead(src); WritableByteChannel out = openWrite(dest)) {
+			if (sparse) {
+				long zeros = 0;
+				while (readFully(in, clear(buff, transferSize)) != 0) {
+					buff.flip();
+					if (isZero(buff))
+						zeros += buff.remaining();
+					else {
+						writeZeros(out, zeros);
+						zeros = 0;
+						writeFully(out, buff);
+					}
+				}
+				writeZeros(out, zeros);
+			} else
+				while (in.read(buff) != -1 || buff.position() != 0) {
+					buff.flip();
+					out.write(buff);
+					buff.compact();
+				}
+		} finally {
+			release(buff);
+		}
+	}
+
+	/**
+	 * Replaces a file that can't be written to with a copy of another. The copy is
+	 * written next to the destination, given its permissions, forced to disk, and
+	 * then renamed over it. Unlike {@link #copy(File, File, boolean) copying in
+	 * place}, this breaks the destination's other hard links, and the copy is
+	 * owned by whoever runs the program.
+	 *
+	 * @throws IOException If the copy couldn't be written or renamed (e.g. because
+	 *                     the destination's directory can't be written to
+	 *                     either), in which case the destination is untouched.
+	 */
+	private void replace(File src, File dest, boolean sparse) throws IOException {
+		Path target = dest.toPath().toAbsolutePath();
+		Path copy = Files.createTempFile(target.getParent(), '.' + dest.getName() + '-', ".tmp");
+		try {
+			copy(src, copy.toFile(), sparse);
+			force(copy.toFile());
+			try {
+				Files.setPosixFilePermissions(copy, Files.getPosixFilePermissions(target));
+			} catch (UnsupportedOperationException e) {
+				copy.toFile().setReadOnly();
+			}
+			Files.move(copy, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(copy);
+			throw e;
+		}
+		forceDirectory(target.getParent().toFile());
+	}
+
+	/**
+	 * Forces a file's contents and metadata to disk, however they were written.
+	 * Files that can't be opened for writing are forced through a read-only
+	 * channel, which suffices on most platforms.
+	 */
+	public static void force(File f) throws IOException {
+		Path path = f.toPath();
+		try (FileChannel channel = FileChannel.open(path,
+				Files.isWritable(path) ? StandardOpenOption.WRITE : StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Forces a directory's entries to disk, so that files created in it can be
+	 * found after a crash.
+	 */
+	public static void forceDirectory(File dir) {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not every platform can open directories (e.g. Windows), in which case
+			// their entries are made durable along with the files.
+		}
+	}
+
+	/**
+	 * Reads from the channel until the buffer has no space remaining or the end of
+	 * the channel is reached.
+	 *
+	 * @return The number of bytes read.
+	 */
+	public static int readFully(ReadableByteChannel channel, ByteBuffer buff) throws IOException {
+		int amt = 0, c;
+		while (buff.hasRemaining() && (c = channel.read(buff)) != -1)
+			amt += c;
+		return amt;
+	}
+
+	/**
+	 * Clears the buffer and sets its limit to the specified size.
+	 *
+	 * @return The buffer.
+	 */
+	public static ByteBuffer clear(ByteBuffer buff, int size) {
+		return buff.clear().limit(size);
+	}
+
+	/**
+	 * Determines whether the bytes remaining in the buffer start with the
+	 * specified bytes. The buffer's position is not changed.
+	 */
+	public static boolean startsWith(ByteBuffer buff, byte[] prefix) {
+		return buff.remaining() >= prefix.length
+				&& buff.duplicate().limit(buff.position() + prefix.length).equals(ByteBuffer.wrap(prefix));
+	}
+
+	/**
+	 * Determines whether the bytes remaining in the buffer are all zero. The
+	 * buffer's position is not changed.
+	 */
+	public static boolean isZero(ByteBuffer buff) {
+		for (int pos = buff.position(), end = buff.limit(); pos < end; pos += ZEROS.capacity()) {
+			int len = Math.min(end - pos, ZEROS.capacity());
+			if (buff.slice(pos, len).mismatch(ZEROS.slice(0, len)) != -1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Puts as many as <code>n</code> zeros into the buffer, as many as fit.
+	 *
+	 * @return The number of zeros put.
+	 */
+	public static int putZeros(ByteBuffer buff, long n) {
+		int amt = (int) Math.min(n, Math.min(buff.remaining(), ZEROS.capacity()));
+		buff.put(ZEROS.slice(0, amt));
+		return amt;
+	}
+
+	/**
+	 * A channel that can be told to skip over bytes, leaving them unwritten, such
+	 * as the channels that {@link FileIO} wraps files in. Skipped bytes read as
+	 * zeros once something is written after them.
+	 */
+	interface SkippingChannel extends WritableByteChannel {
+		/**
+		 * Moves the write position <code>n</code> bytes forward without writing.
+		 */
+		void skip(long n) throws IOException;
+	}
+
+	/**
+	 * Moves a channel's write position <code>n</code> bytes forward, leaving a
+	 * hole where the file system supports sparse files. {@link FileChannel}s and
+	 * {@link SkippingChannel}s are skipped forward; other channels are written
+	 * zeros.
+	 */
+	static void skip(WritableByteChannel channel, long n) throws IOException {
+		if (n == 0)
+			return;
+		if (channel instanceof FileChannel) {
+			FileChannel fc = (FileChannel) channel;
+			fc.position(fc.position() + n);
+		} else if (channel instanceof SkippingChannel)
+			((SkippingChannel) channel).skip(n);
+		else
+			while (n > 0) {
+				int amt = (int) Math.min(n, ZEROS.capacity());
+				writeFully(channel, ZEROS.slice(0, amt));
+				n -= amt;
+			}
+	}
+
+	/**
+	 * Writes <code>n</code> zeros to the channel, {@link #skip(WritableByteChannel,
+	 * long) skipping} over them where possible to leave a hole in the file on file
+	 * systems that support sparse files. Only the last byte is written, so that
+	 * the file is extended even if nothing is written after the hole. This works
+	 * through every channel returned by {@link #openWrite(File)}, including
+	 * direct, throttled and asynchronous ones.
+	 */
+	public static void writeZeros(WritableByteChannel channel, long n) throws IOException {
+		if (n == 0)
+			return;
+		skip(channel, n - 1);
+		writeFully(channel, ZEROS.slice(0, 1));
+	}
+
+	/**
+	 * Writes everything remaining in the buffer to the channel.
+	 */
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buff) throws IOException {
+		while (buff.hasRemaining())
+			channel.write(buff);
+	}
+
+	private static FileChannel openDirect(Path path, OpenOption... options) {
+		OpenOption[] opts = new OpenOption[options.length + 1];
+		System.arraycopy(options, 0, opts, 0, options.length);
+		opts[options.length] = ExtendedOpenOption.DIRECT;
+		try {
+			return FileChannel.open(path, opts);
+		} catch (IOException | UnsupportedOperationException e) {
+			// The file system (or platform) refuses direct I/O.
+			return null;
+		}
+	}
+
+	private static int blockSize(Path path) {
+		try {
+			long size = Files.getFileStore(path).getBlockSize();
+			return size > 0 && size <= 1 << 20 ? (int) size : DEFAULT_BLOCK_SIZE;
+		} catch (IOException | UnsupportedOperationException e) {
+			return DEFAULT_BLOCK_SIZE;
+		}
+	}
+
+	/**
+	 * Returns the transfer size rounded up to a multiple of the block size.
+	 */
+	private int transferSize(int block) {
+		return Math.max(block, (transferSize + block - 1) / block * block);
+	}
+
+	/**
+	 * Returns a buffer of the specified size aligned in memory, sliced from the
+	 * (larger) allocated buffer, which is what must be released.
+	 */
+	private static ByteBuffer aligned(ByteBuffer allocated, int size, int alignment) {
+		return allocated.alignedSlice(alignment).limit(size);
+	}
+
+	/**
+	 * Reads a file opened for direct I/O in aligned blocks, handing the data out
+	 * in whatever amounts are requested.
+	 */
+	private static final class DirectReadChannel implements ReadableByteChannel {
+		private final Path path;
+		private final ByteBuffer allocated, block;
+		private final int size;
+		private final FileIO io;
+		private FileChannel channel;
+		private long position;
+		private boolean eof, closed;
+
+		private DirectReadChannel(Path path, FileChannel channel, int size, int alignment, FileIO io) {
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+			this.io = io;
+			allocated = io.allocate(size + alignment);
+			block = aligned(allocated, size, alignment).flip();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!block.hasRemaining()) {
+				// A short read only happens at the end of the file, after which the
+				// position is no longer aligned, so don't read again.
+				if (eof)
+					return -1;
+				block.clear().limit(size);
+				int amt;
+				try {
+					amt = channel.read(block, position);
+				} catch (IOException e) {
+					if (position != 0)
+						throw e;
+					// Some file systems accept O_DIRECT when opening, then refuse the read.
+					channel.close();
+					channel = FileChannel.open(path, StandardOpenOption.READ);
+					amt = channel.read(block, position);
+				}
+				block.flip();
+				if (amt < size)
+					eof = true;
+				if (amt <= 0)
+					return -1;
+				position += amt;
+			}
+			int amt = Math.min(dst.remaining(), block.remaining());
+			dst.put(block.slice().limit(amt));
+			block.position(block.position() + amt);
+			return amt;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				io.release(allocated);
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Collects data written to it into aligned blocks and writes them to a file
+	 * opened for direct I/O. The last, partial block is written padded to a full
+	 * block, then the file is truncated to the amount of data actually written.
+	 */
+	private static final class DirectWriteChannel implements SkippingChannel {
+		private final Path path;
+		private final ByteBuffer allocated, block;
+		private final int size, alignment;
+		private final FileIO io;
+		private FileChannel channel;
+		/**
+		 * The position in the file that the block is written at.
+		 */
+		private long position;
+		private boolean flushed, closed;
+
+		private DirectWriteChannel(Path path, FileChannel channel, int size, int alignment, FileIO io) {
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+			this.alignment = alignment;
+			this.io = io;
+			allocated = io.allocate(size + alignment);
+			block = aligned(allocated, size, alignment);
+		}
+
+		private void flush(boolean last) throws IOException {
+			int amt = block.position();
+			// A block is flushed before it's full at the end of the file, padded, and at
+			// a hole, where it is already aligned.
+			block.limit(last ? (amt + alignment - 1) / alignment * alignment : amt);
+			block.position(0);
+			try {
+				while (block.hasRemaining())
+					channel.write(block, position + block.position());
+			} catch (IOException e) {
+				if (flushed)
+					throw e;
+				// Some file systems accept O_DIRECT when opening, then refuse the write.
+				channel.close();
+				channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				block.position(0);
+				while (block.hasRemaining())
+					channel.write(block, position + block.position());
+			}
+			flushed = true;
+			position += amt;
+			block.clear().limit(size);
+		}
+
+		/**
+		 * Fills the block with zeros up to the next aligned boundary, writes out what
+		 * is in the block, then skips whole aligned blocks by moving the position at
+		 * which the next block is written. Direct writes must stay aligned, so the
+		 * rest of the zeros are written.
+		 */
+		@Override
+		public void skip(long n) throws IOException {
+			while (n > 0)
+				if (block.position() == 0 && n >= alignment) {
+					long whole = n / alignment * alignment;
+					position += whole;
+					n -= whole;
+				} else if (block.position() % alignment == 0 && n >= alignment)
+					flush(false);
+				else {
+					int c = (int) Math.min(n, Math.min(alignment - block.position() % alignment, ZEROS.capacity()));
+					block.put(ZEROS.slice(0, c));
+					n -= c;
+					if (!block.hasRemaining())
+						flush(false);
+				}
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int amt = src.remaining();
+			while (src.hasRemaining()) {
+				int c = Math.min(src.remaining(), block.remaining());
+				block.put(src.slice().limit(c));
+				src.position(src.position() + c);
+				if (!block.hasRemaining())
+					flush(false);
+			}
+			return amt;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (block.position() != 0) {
+					flush(true);
+					channel.truncate(position);
+				}
+			} finally {
+				channel.close();
+				io.release(allocated);
+			}
+		}
+	}
+
+	/**
+	 * Writes to another channel from a writer thread, double buffered: data is
+	 * collected in one buffer while the other is being written. Only one write is
+	 * in flight at a time, so the data reaches the channel in order. A failed
+	 * write is thrown from the next call to {@link #write(ByteBuffer)} or from
+	 * {@link #close()}.
+	 */
+	private static final class AsyncWriteChannel implements SkippingChannel {
+		private final WritableByteChannel channel;
+		private final FileIO io;
+		private ByteBuffer filling, writing;
+		private Future<?> pending;
+		private boolean closed;
+
+		private AsyncWriteChannel(WritableByteChannel channel, FileIO io) {
+			this.channel = channel;
+			this.io = io;
+			filling = io.allocate(ASYNC_BUFFER_SIZE);
+		}
+
+		/**
+		 * Waits for the write in flight, if any, to finish.
+		 */
+		private void await() throws IOException {
+			if (pending == null)
+				return;
+			boolean interrupted = false;
+			try {
+				// The buffer being written can't be reused or released until the write is
+				// done, so wait even if interrupted.
+				while (true)
+					try {
+						pending.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			} finally {
+				pending = null;
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Hands the filled buffer to a writer thread once the previous write is done,
+		 * and carries on filling the other buffer.
+		 */
+		private void swap() throws IOException {
+			await();
+			ByteBuffer full = filling.flip();
+			filling = writing == null ? io.allocate(ASYNC_BUFFER_SIZE) : writing.clear();
+			writing = full;
+			pending = WRITERS.submit(() -> {
+				writeFully(channel, full);
+				return null;
+			});
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			int amt = src.remaining();
+			while (src.hasRemaining()) {
+				int c = Math.min(src.remaining(), filling.remaining());
+				filling.put(src.slice().limit(c));
+				src.position(src.position() + c);
+				if (!filling.hasRemaining())
+					swap();
+			}
+			return amt;
+		}
+
+		/**
+		 * Writes out what has been collected, then skips the underlying channel once
+		 * nothing is in flight, so that the skip happens after every earlier write.
+		 */
+		@Override
+		public void skip(long n) throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			if (filling.position() != 0)
+				swap();
+			await();
+			FileIO.skip(channel, n);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (filling.position() != 0)
+					swap();
+				await();
+			} finally {
+				// Nothing is in flight here, even if a write failed.
+				io.release(filling);
+				io.release(writing);
+				channel.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package pala.tools.fenc.processing;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * A set of {@link BasicFileAttributes#fileKey() file keys}, which a
+ * {@link Traversal} keeps one of for every file it hands on, so it has to stay
+ * small however many files are walked. Unix file keys (a device and an inode)
+ * are stored as two <code>long</code>s in an open-addressed table, about 16 to
+ * 32 bytes per file rather than the 80 or so that a {@link HashSet} of the key
+ * objects takes. Any other kind of key is kept in a {@link HashSet}.
+ * </p>
+ * <p>
+ * The device and inode are read from the key's string form,
+ * <code>(dev=&lt;hex&gt;,ino=&lt;decimal&gt;)</code>, since the JDK doesn't
+ * expose them otherwise. A key whose string form isn't in that format is simply
+ * treated as an unknown kind of key.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class FileKeySet {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The devices and inodes of the Unix keys, at the same indices. A slot whose
+	 * inode is 0 is free; no file has inode 0.
+	 */
+	private long[] devices = new long[INITIAL_CAPACITY], inodes = new long[INITIAL_CAPACITY];
+	private int size;
+	private final Set<Object> others = new HashSet<>();
+
+	/**
+	 * Adds a file key to the set.
+	 *
+	 * @param key The file key.
+	 * @return <code>true</code> if the key wasn't in the set already.
+	 */
+	boolean add(Object key) {
+		String s = key.toString();
+		int comma = s.indexOf(",ino=");
+		if (!s.startsWith("(dev=") || comma == -1 || !s.endsWith(")"))
+			return others.add(key);
+		long dev, ino;
+		try {
+			dev = Long.parseUnsignedLong(s, 5, comma, 16);
+			ino = Long.parseUnsignedLong(s, comma + 5, s.length() - 1, 10);
+		} catch (NumberFormatException e) {
+			return others.add(key);
+		}
+		return ino == 0 ? others.add(key) : add(dev, ino);
+	}
+
+	private boolean add(long dev, long ino) {
+		int mask = inodes.length - 1;
+		for (int i = hash(dev, ino) & mask;; i = i + 1 & mask)
+			if (inodes[i] == 0) {
+				devices[i] = dev;
+				inodes[i] = ino;
+				// Kept at most three quarters full, so that probes stay short.
+				if (++size > inodes.length - (inodes.length >> 2))
+					grow();
+				return true;
+			} else if (devices[i] == dev && inodes[i] == ino)
+				return false;
+	}
+
+	private void grow() {
+		long[] oldDevices = devices, oldInodes = inodes;
+		devices = new long[oldInodes.length << 1];
+		inodes = new long[oldInodes.length << 1];
+		size = 0;
+		for (int i = 0; i < oldInodes.length; i++)
+			if (oldInodes[i] != 0)
+				add(oldDevices[i], oldInodes[i]);
+	}
+
+	private static int hash(long dev, long ino) {
+		long h = (ino ^ dev * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ h >>> 32);
+	}
+
+}
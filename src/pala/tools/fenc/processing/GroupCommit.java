@@ -0,0 +1,271 @@
+package pala.tools.fenc.processing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * Forces processed files to disk in groups, so that many files share the cost
+ * of waiting for the disk. Files are {@link #add(File, Runnable, Consumer)
+ * added} as soon as they have been written, and a group is forced once it has
+ * a set number of files or once its first file has waited for a set time,
+ * whichever comes first. Each file in the group is then forced, each directory
+ * containing them is forced once (so that newly created files can be found
+ * after a crash), the journal, if any, is synced, and only then is each file
+ * reported as durable.
+ * </p>
+ * <p>
+ * A file can also be {@link #await(File) awaited}, for files that must be on
+ * disk (along with the journal) before the caller carries on, such as the
+ * temporary copy of a file about to be rewritten in place. The caller then
+ * forces the current group itself rather than waiting for it to fill, so with
+ * several threads, the files that are added while one group is being forced
+ * are forced together in the next.
+ * </p>
+ * <p>
+ * Forcing the first file of a group usually commits the file system's journal
+ * for the others too, so the rest of the group costs little. Groups are forced
+ * one at a time, but not necessarily in the order they were filled: a group
+ * that fills up is forced by the thread that filled it, which may get there
+ * before the timer forces an older group. Nothing depends on the order, since
+ * each file is only reported once its own group is on disk.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class GroupCommit implements Closeable {
+
+	private static final class Pending {
+		private final File file;
+		private final Runnable durable;
+		private final Consumer<IOException> failed;
+		/**
+		 * Counted down once the file's group, and the journal, have been forced, for
+		 * a file that is {@link GroupCommit#await(File) awaited}.
+		 */
+		private final CountDownLatch forced;
+		private IOException error;
+
+		private Pending(File file, Runnable durable, Consumer<IOException> failed) {
+			this.file = file;
+			this.durable = durable;
+			this.failed = failed;
+			forced = null;
+		}
+
+		private Pending(File file) {
+			this.file = file;
+			durable = null;
+			failed = null;
+			forced = new CountDownLatch(1);
+		}
+	}
+
+	private final int maxFiles;
+	private final long maxDelay;
+	private final Journal journal;
+	private final MessageLogger logger;
+	private final Object syncLock = new Object();
+	private final Thread timer;
+	private List<Pending> group = new ArrayList<>();
+	private long groupStart;
+	private boolean closed;
+	private long groups, files;
+
+	/**
+	 * @param maxFiles The number of files that makes a group be forced.
+	 * @param maxDelay The number of milliseconds a file may wait for its group to
+	 *                 be forced.
+	 * @param journal  The {@link Journal} that files' commits are recorded to,
+	 *                 which is synced with each group, or <code>null</code>.
+	 * @param logger   The logger that journal failures are reported to.
+	 */
+	public GroupCommit(int maxFiles, long maxDelay, Journal journal, MessageLogger logger) {
+		this.maxFiles = maxFiles;
+		this.maxDelay = maxDelay;
+		this.journal = journal;
+		this.logger = logger;
+		timer = new Thread(this::run, "fenc-group-commit");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Adds a file that has been written to the current group. If this fills the
+	 * group, it is forced before this method returns.
+	 *
+	 * @param file    The file to force.
+	 * @param durable Called once the file is on disk. It may write to the journal,
+	 *                which is synced afterwards.
+	 * @param failed  Called instead if the file couldn't be forced.
+	 */
+	public void add(File file, Runnable durable, Consumer<IOException> failed) {
+		List<Pending> full;
+		synchronized (this) {
+			full = add(new Pending(file, durable, failed));
+		}
+		if (full != null)
+			force(full);
+	}
+
+	/**
+	 * Adds a file to the current group and waits until it and the journal have
+	 * been forced to disk. Unless another thread forces the group first, the
+	 * calling thread forces it straight away.
+	 *
+	 * @param file The file to force.
+	 * @throws IOException If the file couldn't be forced, or the journal couldn't
+	 *                     be synced.
+	 */
+	public void await(File file) throws IOException {
+		Pending p = new Pending(file);
+		List<Pending> full;
+		synchronized (this) {
+			full = add(p);
+		}
+		synchronized (syncLock) {
+			if (full != null)
+				force(full);
+			// Another thread may have forced the group while this one waited for the
+			// lock.
+			else if (p.forced.getCount() != 0) {
+				List<Pending> g;
+				synchronized (this) {
+					g = take();
+				}
+				if (!g.isEmpty())
+					force(g);
+			}
+		}
+		// If another thread took the group but hasn't forced it yet, wait for it to.
+		boolean interrupted = false;
+		while (true)
+			try {
+				p.forced.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (p.error != null)
+			throw p.error;
+	}
+
+	/**
+	 * @return The group, if adding the file filled it.
+	 */
+	private List<Pending> add(Pending p) {
+		if (group.isEmpty()) {
+			groupStart = System.nanoTime();
+			notifyAll();
+		}
+		group.add(p);
+		return group.size() >= maxFiles ? take() : null;
+	}
+
+	private List<Pending> take() {
+		List<Pending> g = group;
+		group = new ArrayList<>();
+		return g;
+	}
+
+	private long remaining() {
+		return maxDelay - (System.nanoTime() - groupStart) / 1000000;
+	}
+
+	private void run() {
+		while (true) {
+			List<Pending> due;
+			synchronized (this) {
+				try {
+					while (!closed && (group.isEmpty() || remaining() > 0))
+						if (group.isEmpty())
+							wait();
+						else
+							wait(remaining());
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;
+				due = take();
+			}
+			force(due);
+		}
+	}
+
+	private void force(List<Pending> g) {
+		synchronized (syncLock) {
+			Set<File> directories = new LinkedHashSet<>();
+			for (Pending p : g)
+				try {
+					FileIO.force(p.file);
+					directories.add(p.file.getAbsoluteFile().getParentFile());
+				} catch (IOException e) {
+					p.error = e;
+				}
+			for (File d : directories)
+				FileIO.forceDirectory(d);
+			for (Pending p : g)
+				if (p.forced != null)
+					continue;
+				else if (p.error == null)
+					p.durable.run();
+				else
+					p.failed.accept(p.error);
+			if (journal != null)
+				try {
+					journal.sync();
+				} catch (IOException e) {
+					logger.failure("JRNL", "Failed to sync the journal to disk. [Err msg: " + e.getLocalizedMessage()
+							+ ']');
+					// What the awaited files' callers recorded in the journal may not be on
+					// disk.
+					for (Pending p : g)
+						if (p.forced != null && p.error == null)
+							p.error = e;
+				}
+			for (Pending p : g)
+				if (p.forced != null)
+					p.forced.countDown();
+			groups++;
+			files += g.size();
+		}
+	}
+
+	/**
+	 * Forces the files waiting in the current group, then stops the timer.
+	 */
+	@Override
+	public void close() {
+		List<Pending> last;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			last = take();
+		}
+		if (!last.isEmpty())
+			force(last);
+	}
+
+	/**
+	 * Reports how many files were forced to disk, in how many groups.
+	 */
+	public void report(MessageLogger logger) {
+		synchronized (syncLock) {
+			logger.success("DURA", "Forced " + files + " files to disk in " + groups + " groups.");
+		}
+	}
+
+}
@@ -3,30 +3,36 @@ package pala.tools.fenc.processing;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import pala.libs.generic.strings.StringTools;
-import pala.libs.generic.util.Hashing;
 import pala.tools.fenc.logging.MessageLogger;
 
 public class HashProcessor implements DirectoryProcessor {
 
 	private final MessageLogger logger;
 	private final int bufferSize;
+	private final FileIO io;
 
-	public HashProcessor(MessageLogger logger, int bufferSize) {
+	public HashProcessor(MessageLogger logger, int bufferSize, FileIO io) {
 		this.logger = logger;
 		this.bufferSize = bufferSize;
+		this.io = io;
+	}
+
+	public HashProcessor(MessageLogger logger, int bufferSize) {
+		this(logger, bufferSize, FileIO.PLAIN);
 	}
 
 	@Override
 	public void processFile(File a) {
 		try {
-			logger.success("SUCC", '[' + StringTools.toHexString(
-					a.length() > bufferSize ? hashFile(a, bufferSize) : Hashing.sha256(Files.readAllBytes(a.toPath())))
-					+ "] - " + a.getAbsolutePath());
+			io.startFile();
+			logger.success("SUCC",
+					'[' + StringTools.toHexString(hashFile(a, bufferSize, io)) + "] - " + a.getAbsolutePath());
 		} catch (IOException e) {
 			logger.failure("FAIL", "Failure hashing " + a + ". [Err msg: " + e.getLocalizedMessage() + ']');
 		} catch (FileProcessingException e) {
@@ -34,6 +40,24 @@ public class HashProcessor implements DirectoryProcessor {
 		}
 	}
 
+	/**
+	 * Hashes a file, reading it through the specified {@link FileIO}.
+	 */
+	public static byte[] hashFile(File f, int bufferSize, FileIO io) throws IOException {
+		ByteBuffer buff = io.allocate(bufferSize);
+		try (ReadableByteChannel channel = io.openRead(f)) {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			while (channel.read(FileIO.clear(buff, bufferSize)) != -1)
+				sha.update(buff.flip());
+			return sha.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new FileProcessingException(
+					"SHA-256 implementation not supported on this Java system; hashing could not be performed.");
+		} finally {
+			io.release(buff);
+		}
+	}
+
 	public static byte[] hashFile(File f, int bufferSize) throws IOException {
 		try (FileInputStream fis = new FileInputStream(f)) {
 			MessageDigest sha = MessageDigest.getInstance("SHA-256");
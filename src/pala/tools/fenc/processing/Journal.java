@@ -0,0 +1,337 @@
+package pala.tools.fenc.processing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * A write-ahead journal that records the state of each file processed by a
+ * {@link CipherProcessor}, so that a long run that gets killed can be resumed
+ * where it stopped.
+ * </p>
+ * <p>
+ * Each file moves through three {@link State}s, each of which is appended to
+ * the journal (and flushed) before the next step is taken:
+ * </p>
+ * <ol>
+ * <li>{@link State#STARTED}, once the temporary file that the file will be
+ * processed into has been created. The path of the temporary file is recorded
+ * with this state.</li>
+ * <li>{@link State#STAGED}, once the processed copy has been fully written to
+ * the temporary file, but before it is copied back over the source file. The
+ * temporary file is {@link TempFiles#keep(File) kept} first, so that nothing
+ * deletes it while it may be the only good copy of the file, and its new path
+ * is recorded with this state.</li>
+ * <li>{@link State#COMMITTED}, once the copy back has completed.</li>
+ * </ol>
+ * <p>
+ * When a journal is {@link #open(File, boolean) opened} for resumption, the
+ * existing records are read back. Committed files are then skipped by the
+ * {@link CipherProcessor} without being opened, and
+ * {@link #recover(FileIO, MessageLogger)} repairs files that were interrupted:
+ * a staged file has its temporary copy
+ * written back over the source (the source may have been partially overwritten
+ * when the run stopped) and a started file has its temporary file deleted (the
+ * source is untouched at that point, so it is simply processed again). Staged
+ * copies of committed files, left behind if a run was killed just after
+ * committing a file, are deleted as well.
+ * </p>
+ * <p>
+ * Files processed into an {@link OutputTree} are never staged: their
+ * destination is recorded in place of the temporary file, and a destination
+ * that was started but not committed is deleted by recovery, like a temporary
+ * file, so that the file is processed again.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class Journal implements Closeable {
+
+	public enum State {
+		STARTED, STAGED, COMMITTED
+	}
+
+	private static final class Entry {
+		private State state;
+		private String temp;
+		/**
+		 * Whether the staged copy should be copied back sparsely.
+		 */
+		private boolean sparse;
+
+		private Entry(State state, String temp) {
+			this.state = state;
+			this.temp = temp;
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it so that the offset of the last complete
+	 * record can be determined when loading a journal whose tail was cut off.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int amt = super.read(b, off, len);
+			if (amt != -1)
+				count += amt;
+			return amt;
+		}
+	}
+
+	private final File file;
+	private final FileOutputStream fos;
+	private final DataOutputStream out;
+	/**
+	 * Files that were not committed by the previous run, keyed by absolute path.
+	 * Emptied by {@link #recover(FileIO, MessageLogger)}.
+	 */
+	private final Map<String, Entry> pending = new HashMap<>();
+	/**
+	 * Absolute paths of the files committed by the previous run.
+	 */
+	private final Set<String> committed = new HashSet<>();
+	/**
+	 * Absolute paths of the staged files that
+	 * {@link #recover(FileIO, MessageLogger)} couldn't repair, which must not be
+	 * processed again while their sources may be partially overwritten.
+	 */
+	private final Set<String> held = new HashSet<>();
+	/**
+	 * The staged copies of files that the previous run committed but may not have
+	 * deleted the copy of.
+	 */
+	private final Set<String> leftovers = new HashSet<>();
+	private long skipped;
+
+	private Journal(File file, boolean resume) throws IOException {
+		this.file = file;
+		if (resume)
+			load();
+		out = new DataOutputStream(new BufferedOutputStream(fos = new FileOutputStream(file, resume)));
+	}
+
+	/**
+	 * Opens the journal at the specified location.
+	 *
+	 * @param file   The journal file.
+	 * @param resume <code>true</code> to load the records of a previous run from
+	 *               the file and append to it, <code>false</code> to start a new
+	 *               journal, discarding whatever the file contains.
+	 * @return The opened {@link Journal}.
+	 * @throws IOException If reading or opening the file fails, or if
+	 *                     <code>resume</code> is <code>true</code> and the file
+	 *                     does not exist.
+	 */
+	public static Journal open(File file, boolean resume) throws IOException {
+		return new Journal(file, resume);
+	}
+
+	private void load() throws IOException {
+		long good = 0;
+		try (CountingInputStream cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+				DataInputStream dis = new DataInputStream(cis)) {
+			State[] states = State.values();
+			while (true) {
+				int s = dis.read();
+				if (s == -1)
+					break;
+				if (s >= states.length)
+					throw new IOException("The journal " + file + " is corrupt; unknown record type " + s + " at offset "
+							+ good + '.');
+				String path = dis.readUTF();
+				State state = states[s];
+				switch (state) {
+				case STARTED:
+					pending.put(path, new Entry(state, dis.readUTF()));
+					committed.remove(path);
+					break;
+				case STAGED:
+					String temp = dis.readUTF();
+					boolean sparse = dis.readBoolean();
+					Entry e = pending.get(path);
+					if (e != null) {
+						e.state = state;
+						e.temp = temp;
+						e.sparse = sparse;
+					}
+					break;
+				case COMMITTED:
+					Entry done = pending.remove(path);
+					if (done != null && done.state == State.STAGED)
+						leftovers.add(done.temp);
+					committed.add(path);
+				}
+				good = cis.count;
+			}
+		} catch (EOFException | UTFDataFormatException e) {
+			// The last record was only partially written when the previous run stopped.
+		}
+		// Cut off any partial record so that appended records can be read back.
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() > good)
+				raf.setLength(good);
+		}
+	}
+
+	/**
+	 * Repairs each file that the previous run did not commit. Files that were
+	 * {@link State#STAGED} have their temporary copy written back over them and
+	 * are committed. Files that were only {@link State#STARTED} have their
+	 * temporary file deleted and are left to be processed again.
+	 * <p>
+	 * A staged file whose copy can't be written back (e.g. because the temporary
+	 * copy is missing) is not committed, so that a later resume tries again, but
+	 * it is held back from being processed in this run, since its source may be
+	 * partially overwritten.
+	 * </p>
+	 *
+	 * <p>
+	 * Staged copies are written back the same way a {@link CipherProcessor}
+	 * writes them: in place, through the {@link FileIO}, so that the file keeps its
+	 * hard links and permissions, then forced to disk before being committed.
+	 * </p>
+	 *
+	 * @param io     The {@link FileIO} to copy staged files back with.
+	 * @param logger The logger to report repaired files and failures to.
+	 */
+	public void recover(FileIO io, MessageLogger logger) {
+		for (Map.Entry<String, Entry> e : pending.entrySet()) {
+			File f = new File(e.getKey()), temp = new File(e.getValue().temp);
+			if (e.getValue().state == State.STAGED)
+				if (!temp.isFile()) {
+					logger.failure("RCVR", "The staged copy of " + f + " (" + temp
+							+ ") is missing, so the interrupted copy can't be completed. The file may be partially overwritten and is skipped.");
+					held.add(e.getKey());
+				} else
+					try {
+						io.copy(temp, f, e.getValue().sparse);
+						FileIO.force(f);
+						committed(f);
+						sync();
+						temp.delete();
+						committed.add(e.getKey());
+						logger.success("RCVR", "Completed the interrupted copy of " + temp + " over " + f + '.');
+					} catch (IOException e1) {
+						logger.failure("RCVR", "Failed to complete the interrupted copy of " + temp + " over " + f
+								+ ". The file is skipped so that the staged copy is not lost; copy it back manually or resume again. [Err msg: "
+								+ e1.getLocalizedMessage() + ']');
+						// Don't let the file be processed again while its source may be garbage.
+						held.add(e.getKey());
+					}
+			else
+				temp.delete();
+		}
+		pending.clear();
+		for (String temp : leftovers)
+			new File(temp).delete();
+		leftovers.clear();
+	}
+
+	/**
+	 * Determines whether the specified file was committed by the previous run, in
+	 * which case it should be skipped without being opened. Files that
+	 * {@link #recover(FileIO, MessageLogger) recovery} failed to repair are skipped too,
+	 * but not counted as {@link #getSkipped() skipped}.
+	 *
+	 * @param f The file.
+	 * @return <code>true</code> if the file was already committed.
+	 */
+	public boolean isCommitted(File f) {
+		if (!held.isEmpty() && held.contains(f.getAbsolutePath()))
+			return true;
+		if (committed.isEmpty() || !committed.contains(f.getAbsolutePath()))
+			return false;
+		synchronized (this) {
+			skipped++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of files skipped so far because they were committed by
+	 *         the previous run.
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	private synchronized void write(State state, File f, File temp) throws IOException {
+		out.write(state.ordinal());
+		out.writeUTF(f.getAbsolutePath());
+		if (temp != null)
+			out.writeUTF(temp.getAbsolutePath());
+		out.flush();
+	}
+
+	public void started(File f, File temp) throws IOException {
+		write(State.STARTED, f, temp);
+	}
+
+	/**
+	 * @param temp   The temporary file holding the processed copy, as
+	 *               {@link TempFiles#keep(File) kept}.
+	 * @param sparse Whether runs of zeros in the copy should be left as holes
+	 *               when it's copied back.
+	 */
+	public synchronized void staged(File f, File temp, boolean sparse) throws IOException {
+		out.write(State.STAGED.ordinal());
+		out.writeUTF(f.getAbsolutePath());
+		out.writeUTF(temp.getAbsolutePath());
+		out.writeBoolean(sparse);
+		out.flush();
+	}
+
+	public void committed(File f) throws IOException {
+		write(State.COMMITTED, f, null);
+	}
+
+	/**
+	 * Forces the records written so far to disk. Records are only flushed to the
+	 * operating system as they're written, which survives the program being
+	 * killed but not the machine losing power.
+	 */
+	public synchronized void sync() throws IOException {
+		out.flush();
+		fos.getFD().sync();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+}
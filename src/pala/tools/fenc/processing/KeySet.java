@@ -0,0 +1,110 @@
+package pala.tools.fenc.processing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A set of keys that files may be encrypted with, for decrypting a tree whose
+ * files weren't all encrypted with the same key. Each file's key is found from
+ * its header, so every file is read only once no matter how many keys are in
+ * the set.
+ * </p>
+ * <p>
+ * The headers of every key, in every {@link FileFormat}, are computed up front
+ * and kept in a hash map, so finding a file's key takes the same time however
+ * many keys there are. The number of files decrypted with each key is counted.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class KeySet {
+
+	/**
+	 * A key in the set, along with a name to report it by (which is never the key
+	 * itself) and the number of files found to be encrypted with it.
+	 */
+	public static final class Key {
+		private final CipherKey key;
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+
+		private Key(CipherKey key, String name) {
+			this.key = key;
+			this.name = name;
+		}
+
+		public CipherKey getKey() {
+			return key;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The number of files that have been decrypted with this key.
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		void counted() {
+			count.incrementAndGet();
+		}
+	}
+
+	private final List<Key> keys = new ArrayList<>();
+	private final Map<ByteBuffer, Key> headers = new HashMap<>();
+
+	/**
+	 * Adds a key to the set. A key that is already in the set (under any name) is
+	 * ignored.
+	 *
+	 * @param key  The key.
+	 * @param name The name to report the key by, e.g. where it was read from.
+	 * @return <code>true</code> if the key was added, <code>false</code> if it was
+	 *         already in the set.
+	 */
+	public boolean add(CipherKey key, String name) {
+		ByteBuffer header = ByteBuffer.wrap(key.getHeader());
+		if (headers.containsKey(header))
+			return false;
+		Key k = new Key(key, name);
+		keys.add(k);
+		headers.put(header, k);
+		headers.put(ByteBuffer.wrap(key.getAuthenticatedHeader()), k);
+		return true;
+	}
+
+	/**
+	 * Finds the key that a file was encrypted with from the start of the file.
+	 *
+	 * @param in A buffer holding the start of the file, ready to be read. Its
+	 *           position is not changed.
+	 * @return The key whose header the file starts with, in any
+	 *         {@link FileFormat}, or <code>null</code> if there is none.
+	 */
+	public Key find(ByteBuffer in) {
+		// Every header is a SHA-256 hash.
+		return in.remaining() < 32 ? null : headers.get(in.slice(in.position(), 32));
+	}
+
+	/**
+	 * @return The keys in the set, in the order they were added.
+	 */
+	public List<Key> getKeys() {
+		return Collections.unmodifiableList(keys);
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+}
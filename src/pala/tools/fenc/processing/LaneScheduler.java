@@ -0,0 +1,183 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * A {@link DirectoryProcessor} that sits in front of another one and processes
+ * the files it is given on its own worker threads, split into two lanes by file
+ * size.
+ * </p>
+ * <p>
+ * Files smaller than the threshold go to the small lane and are processed in
+ * the order they are found. Files at or above the threshold go to the large
+ * lane, which always starts the largest file waiting in it first, so that a huge
+ * file found late in a traversal is not left running long after everything
+ * else has finished. Each lane has its own number of workers, so small files
+ * are never queued behind large ones.
+ * </p>
+ * <p>
+ * Each lane only holds a bounded number of waiting files; traversal blocks when
+ * a lane is full, so that memory stays bounded for arbitrarily long inputs.
+ * {@link #finish()} must be called after all files have been given to the
+ * scheduler. It waits for both lanes to drain, then reports each lane's
+ * throughput.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class LaneScheduler implements DirectoryProcessor {
+
+	/**
+	 * The default maximum number of files that may wait in a lane before
+	 * traversal blocks.
+	 */
+	public static final int QUEUE_LIMIT = 4096;
+
+	private final class Task implements Runnable, Comparable<Task> {
+		private final File file;
+		private final long size;
+		private final Lane lane;
+
+		private Task(File file, long size, Lane lane) {
+			this.file = file;
+			this.size = size;
+			this.lane = lane;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			lane.firstStart.compareAndSet(0, start);
+			try {
+				delegate.processFile(file);
+			} finally {
+				lane.files.incrementAndGet();
+				lane.bytes.addAndGet(size);
+				lane.lastEnd.accumulateAndGet(System.nanoTime(), Math::max);
+				lane.permits.release();
+			}
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			return Long.compare(o.size, size);
+		}
+	}
+
+	private static final class Lane {
+		private final String name;
+		private final ThreadPoolExecutor executor;
+		private final Semaphore permits;
+		private final AtomicLong files = new AtomicLong(), bytes = new AtomicLong(), firstStart = new AtomicLong(),
+				lastEnd = new AtomicLong();
+
+		private Lane(String name, ThreadPoolExecutor executor, int queueLimit) {
+			this.name = name;
+			this.executor = executor;
+			permits = new Semaphore(queueLimit);
+			AtomicInteger count = new AtomicInteger();
+			executor.setThreadFactory(r -> {
+				Thread t = new Thread(r, "fenc-" + name + '-' + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		private void report(MessageLogger logger) {
+			long f = files.get(), b = bytes.get();
+			double seconds = f == 0 ? 0 : (lastEnd.get() - firstStart.get()) / 1e9;
+			logger.success("LANE",
+					String.format("%s lane (%d workers): processed %d files and %d bytes in %.3fs (%.1f files/s, %.2f MB/s).",
+							name, executor.getMaximumPoolSize(), f, b, seconds, seconds == 0 ? 0 : f / seconds,
+							seconds == 0 ? 0 : b / seconds / 1e6));
+		}
+	}
+
+	private final DirectoryProcessor delegate;
+	private final long threshold;
+	private final Lane small, large;
+	private final MessageLogger logger;
+
+	/**
+	 * Creates a new {@link LaneScheduler}.
+	 *
+	 * @param delegate     The {@link DirectoryProcessor} whose
+	 *                     {@link DirectoryProcessor#processFile(File)} is invoked
+	 *                     on the worker threads. It must be safe to invoke
+	 *                     concurrently.
+	 * @param threshold    The size, in bytes, at and above which files go to the
+	 *                     large lane.
+	 * @param smallWorkers The number of workers in the small lane.
+	 * @param largeWorkers The number of workers in the large lane.
+	 * @param logger       The logger that each lane's throughput is reported to.
+	 * @param queueLimit   The maximum number of files that may wait in each lane
+	 *                     (including those being processed) before traversal
+	 *                     blocks.
+	 */
+	public LaneScheduler(DirectoryProcessor delegate, long threshold, int smallWorkers, int largeWorkers,
+			MessageLogger logger, int queueLimit) {
+		this.delegate = delegate;
+		this.threshold = threshold;
+		this.logger = logger;
+		small = new Lane("small", new ThreadPoolExecutor(smallWorkers, smallWorkers, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>()), queueLimit);
+		large = new Lane("large", new ThreadPoolExecutor(largeWorkers, largeWorkers, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>()), queueLimit);
+	}
+
+	public LaneScheduler(DirectoryProcessor delegate, long threshold, int smallWorkers, int largeWorkers,
+			MessageLogger logger) {
+		this(delegate, threshold, smallWorkers, largeWorkers, logger, QUEUE_LIMIT);
+	}
+
+	@Override
+	public void processFile(File file) {
+		schedule(file, file.length());
+	}
+
+	@Override
+	public void processFile(File file, BasicFileAttributes attrs) {
+		schedule(file, attrs.size());
+	}
+
+	private void schedule(File file, long size) {
+		Lane lane = size < threshold ? small : large;
+		lane.permits.acquireUninterruptibly();
+		lane.executor.execute(new Task(file, size, lane));
+	}
+
+	/**
+	 * Waits for every file given to this scheduler to be processed, shuts down the
+	 * worker threads, then reports the throughput of each lane.
+	 */
+	public void finish() {
+		small.executor.shutdown();
+		large.executor.shutdown();
+		boolean interrupted = false;
+		for (Lane l : new Lane[] { small, large })
+			while (true)
+				try {
+					if (l.executor.awaitTermination(1, TimeUnit.DAYS))
+						break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		small.report(logger);
+		large.report(logger);
+	}
+
+}
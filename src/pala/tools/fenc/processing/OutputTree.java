@@ -0,0 +1,129 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Maps the files a {@link CipherProcessor} processes to locations in an output
+ * directory, so that a tree of files can be processed into a copy of itself
+ * (e.g. on another device) rather than in place.
+ * </p>
+ * <p>
+ * Each of the {@link #addSource(File) sources} (the directories given as
+ * arguments) is mirrored in a directory of the same name in the output
+ * directory: a file found inside a source is written to the same path relative
+ * to that directory as it has relative to the source. Other files, such as
+ * files given directly, are written to the output directory under their own
+ * names. Files inside the output directory itself are not mapped, so that an
+ * output directory inside a source isn't processed into itself.
+ * </p>
+ * <p>
+ * Each name in the output directory belongs to the first source (or file given
+ * directly) that maps to it, so two sources or files with the same name can't
+ * overwrite each other's output; the files of the second are refused instead.
+ * </p>
+ * <p>
+ * If the tree preserves attributes, each written file is given the
+ * modification and access times of its source and, where both file systems
+ * support them, its POSIX permissions.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class OutputTree {
+
+	private final Path root;
+	private final boolean preserve;
+	private final List<Path> sources = new ArrayList<>();
+	/**
+	 * The source or file that each top-level destination in the output directory
+	 * belongs to.
+	 */
+	private final Map<Path, Path> owners = new ConcurrentHashMap<>();
+
+	/**
+	 * @param root     The output directory.
+	 * @param preserve Whether to give written files the times and permissions of
+	 *                 their sources.
+	 */
+	public OutputTree(File root, boolean preserve) {
+		this.root = root.toPath().toAbsolutePath().normalize();
+		this.preserve = preserve;
+	}
+
+	public File getRoot() {
+		return root.toFile();
+	}
+
+	/**
+	 * Adds a directory whose layout is mirrored in the output directory.
+	 */
+	public void addSource(File source) {
+		Path path = source.toPath().toAbsolutePath().normalize();
+		sources.add(path);
+		owners.putIfAbsent(base(path), path);
+	}
+
+	/**
+	 * The top-level destination of a source or a file given directly.
+	 */
+	private Path base(Path path) {
+		return path.getFileName() == null ? root : root.resolve(path.getFileName().toString());
+	}
+
+	/**
+	 * @param f A file being processed.
+	 * @return The location to write the processed file to, or <code>null</code> if
+	 *         the file is inside the output directory.
+	 * @throws FileProcessingException If the file's destination belongs to
+	 *                                 another source or file with the same name.
+	 */
+	public File map(File f) throws FileProcessingException {
+		Path path = f.toPath().toAbsolutePath().normalize();
+		if (path.startsWith(root))
+			return null;
+		// With nested sources, the innermost one decides.
+		Path source = null;
+		for (Path s : sources)
+			if (path.startsWith(s) && !path.equals(s) && (source == null || s.getNameCount() > source.getNameCount()))
+				source = s;
+		Path owner = source == null ? path : source, base = base(owner), existing = owners.putIfAbsent(base, owner);
+		if (existing != null && !existing.equals(owner))
+			throw new FileProcessingException(
+					"Its destination, " + base + ", is already used by " + existing + ", which has the same name.");
+		return (source == null ? base : base.resolve(source.relativize(path))).toFile();
+	}
+
+	/**
+	 * Gives a written file the times and permissions of its source, if this tree
+	 * preserves them.
+	 */
+	public void preserve(File src, File dest) throws IOException {
+		if (!preserve)
+			return;
+		PosixFileAttributeView srcPosix = Files.getFileAttributeView(src.toPath(), PosixFileAttributeView.class),
+				destPosix = Files.getFileAttributeView(dest.toPath(), PosixFileAttributeView.class);
+		BasicFileAttributes attrs;
+		if (srcPosix != null && destPosix != null) {
+			PosixFileAttributes posix = srcPosix.readAttributes();
+			destPosix.setPermissions(posix.permissions());
+			attrs = posix;
+		} else
+			attrs = Files.readAttributes(src.toPath(), BasicFileAttributes.class);
+		Files.getFileAttributeView(dest.toPath(), BasicFileAttributeView.class).setTimes(attrs.lastModifiedTime(),
+				attrs.lastAccessTime(), null);
+	}
+
+}
@@ -0,0 +1,203 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.regex.PatternSyntaxException;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * An ordered list of include and exclude rules that a {@link Traversal} checks
+ * every entry it finds against. The first rule that matches an entry decides
+ * whether it's included; entries that match no rule are included. An excluded
+ * directory is pruned: it is never listed, so nothing inside it is looked at.
+ * </p>
+ * <p>
+ * Each rule is written on its own line, as <code>include</code> or
+ * <code>exclude</code> followed by a space and what it matches, which is one
+ * of:
+ * </p>
+ * <ul>
+ * <li>A glob, optionally prefixed with <code>glob:</code>, or a regular
+ * expression prefixed with <code>regex:</code>. If the pattern contains a
+ * <code>/</code>, it is matched against the entry's path relative to the
+ * argument being walked; otherwise it is matched against the entry's name. A
+ * glob ending in <code>/</code> only matches directories.</li>
+ * <li><code>size&gt;N</code> or <code>size&lt;N</code>, which match files
+ * larger or smaller than a size (e.g. <code>10G</code>).</li>
+ * <li><code>mtime&lt;T</code> or <code>mtime&gt;T</code>, which match files last
+ * modified before or after a time, given as a date (<code>2024-01-31</code>) or
+ * an age (<code>30d</code>, <code>12h</code>, <code>15m</code>).</li>
+ * </ul>
+ * <p>
+ * Blank lines and lines starting with <code>#</code> are ignored. Size and
+ * time rules never match directories. The number of entries, and bytes of
+ * files, that each rule excluded are counted.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class PathFilter {
+
+	private static final class Rule {
+		private final String text;
+		private final boolean include, directoriesOnly, filesOnly, relative;
+		private final PathMatcher matcher;
+		private final Predicate<BasicFileAttributes> predicate;
+		private long entries, bytes;
+
+		private Rule(String text, boolean include, boolean directoriesOnly, boolean filesOnly, boolean relative,
+				PathMatcher matcher, Predicate<BasicFileAttributes> predicate) {
+			this.text = text;
+			this.include = include;
+			this.directoriesOnly = directoriesOnly;
+			this.filesOnly = filesOnly;
+			this.relative = relative;
+			this.matcher = matcher;
+			this.predicate = predicate;
+		}
+
+		private boolean matches(Path relativePath, BasicFileAttributes attrs) {
+			if (directoriesOnly && !attrs.isDirectory() || filesOnly && attrs.isDirectory())
+				return false;
+			if (predicate != null)
+				return predicate.test(attrs);
+			return matcher.matches(relative ? relativePath : relativePath.getFileName());
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<>();
+	private final ToLongFunction<String> sizes;
+
+	/**
+	 * @param sizes Parses the sizes in size rules, throwing an
+	 *              {@link IllegalArgumentException} if a size is malformed.
+	 */
+	public PathFilter(ToLongFunction<String> sizes) {
+		this.sizes = sizes;
+	}
+
+	/**
+	 * Adds a rule, written as it would be on a line of a filter file.
+	 *
+	 * @param rule The rule.
+	 * @throws IllegalArgumentException If the rule is malformed.
+	 */
+	public void add(String rule) {
+		String[] parts = rule.trim().split("\\s+", 2);
+		if (parts.length != 2 || !parts[0].equals("include") && !parts[0].equals("exclude"))
+			throw new IllegalArgumentException(
+					"A rule must be \"include\" or \"exclude\" followed by a pattern, not: " + rule);
+		boolean include = parts[0].equals("include");
+		String spec = parts[1];
+
+		if (spec.startsWith("size>") || spec.startsWith("size<")) {
+			long size = sizes.applyAsLong(spec.substring(5).trim());
+			rules.add(new Rule(rule, include, false, true, false, null,
+					spec.charAt(4) == '>' ? a -> a.size() > size : a -> a.size() < size));
+		} else if (spec.startsWith("mtime>") || spec.startsWith("mtime<")) {
+			long time = parseTime(spec.substring(6));
+			rules.add(new Rule(rule, include, false, true, false, null,
+					spec.charAt(5) == '>' ? a -> a.lastModifiedTime().toMillis() > time
+							: a -> a.lastModifiedTime().toMillis() < time));
+		} else {
+			boolean regex = spec.startsWith("regex:");
+			String pattern = regex ? spec.substring(6) : spec.startsWith("glob:") ? spec.substring(5) : spec;
+			boolean directoriesOnly = !regex && pattern.endsWith("/") && pattern.length() > 1;
+			if (directoriesOnly)
+				pattern = pattern.substring(0, pattern.length() - 1);
+			try {
+				rules.add(new Rule(rule, include, directoriesOnly, false, pattern.contains("/"), FileSystems
+						.getDefault().getPathMatcher((regex ? "regex:" : "glob:") + pattern), null));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid pattern in rule: " + rule + " [" + e.getDescription() + ']');
+			}
+		}
+	}
+
+	/**
+	 * Reads rules from a filter file, one per line.
+	 *
+	 * @param file  The filter file.
+	 * @param sizes Parses the sizes in size rules.
+	 * @throws IllegalArgumentException If a rule is malformed. The message gives
+	 *                                  its line number.
+	 */
+	public static PathFilter read(File file, ToLongFunction<String> sizes) throws IOException {
+		PathFilter filter = new PathFilter(sizes);
+		int line = 0;
+		for (String l : Files.readAllLines(file.toPath())) {
+			line++;
+			if (l.isBlank() || l.trim().startsWith("#"))
+				continue;
+			try {
+				filter.add(l);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + line + " of " + file + ": " + e.getMessage());
+			}
+		}
+		return filter;
+	}
+
+	private static long parseTime(String time) {
+		time = time.trim();
+		try {
+			if (time.matches("\\d+[dhm]")) {
+				long amount = Long.parseLong(time.substring(0, time.length() - 1));
+				long unit = time.endsWith("d") ? 86400000 : time.endsWith("h") ? 3600000 : 60000;
+				return System.currentTimeMillis() - amount * unit;
+			}
+			return LocalDate.parse(time).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException(
+					time + " is not a valid time; give a date (e.g. 2024-01-31) or an age (e.g. 30d, 12h, 15m).");
+		}
+	}
+
+	/**
+	 * Determines whether an entry is included, and counts it against the rule
+	 * that excluded it if it isn't.
+	 *
+	 * @param relativePath The entry's path relative to the argument being walked.
+	 * @param attrs        The entry's attributes.
+	 * @return <code>true</code> if the entry should be processed (or, for a
+	 *         directory, walked).
+	 */
+	public boolean accepts(Path relativePath, BasicFileAttributes attrs) {
+		for (Rule r : rules)
+			if (r.matches(relativePath, attrs)) {
+				if (!r.include) {
+					r.entries++;
+					if (!attrs.isDirectory())
+						r.bytes += attrs.size();
+				}
+				return r.include;
+			}
+		return true;
+	}
+
+	/**
+	 * Reports how many entries and bytes each exclude rule skipped. The contents
+	 * of pruned directories are not counted, since they were never listed.
+	 */
+	public void report(MessageLogger logger) {
+		for (Rule r : rules)
+			if (!r.include)
+				logger.success("FLTR", '"' + r.text.trim() + "\" skipped " + r.entries + " entries (" + r.bytes
+						+ " bytes in files).");
+	}
+
+}
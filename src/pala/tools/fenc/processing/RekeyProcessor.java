@@ -0,0 +1,93 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.NoSuchPaddingException;
+
+import pala.tools.fenc.logging.BranchLogger;
+import pala.tools.fenc.logging.MessageLogger;
+import pala.tools.fenc.logging.PeriodicSuccessLogger;
+
+/**
+ * <p>
+ * Re-encrypts files encrypted with one key so that they are encrypted with
+ * another, in a single pass. Each file is decrypted as it is read and the
+ * plaintext is encrypted again in memory, so the plaintext is never written
+ * anywhere, and only the re-encrypted file is written.
+ * </p>
+ * <p>
+ * Files may be in any {@link FileFormat}; they are re-encrypted into the
+ * format given to the processor. Files already encrypted with the new key are
+ * skipped.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class RekeyProcessor extends CipherProcessor {
+
+	public RekeyProcessor(CipherKey oldKey, CipherKey newKey, int bufferSize, FileFormat format,
+			MessageLogger logger) {
+		this(oldKey, newKey, bufferSize, format, new BranchLogger(logger));
+	}
+
+	public RekeyProcessor(CipherKey oldKey, CipherKey newKey, int bufferSize, FileFormat format,
+			PeriodicSuccessLogger logger) {
+		this(oldKey, newKey, bufferSize, format, new BranchLogger(logger));
+	}
+
+	private RekeyProcessor(CipherKey oldKey, CipherKey newKey, int bufferSize, FileFormat format,
+			BranchLogger logger) {
+		super("re-encrypt", (f, dest, bs, k, io) -> rekeyFile(f, dest, bs, k, newKey, format, io), oldKey,
+				bufferSize, logger);
+	}
+
+	/**
+	 * Re-encrypts a file.
+	 *
+	 * @param f          The file, encrypted with the old key.
+	 * @param dest       The destination file to output the file re-encrypted with
+	 *                   the new key to.
+	 * @param bufferSize The buffer size, which is also the chunk size of the
+	 *                   {@link FileFormat#AUTHENTICATED} format.
+	 * @param oldKey     The key the file is encrypted with.
+	 * @param newKey     The key to encrypt the file with.
+	 * @param format     The format to encrypt into.
+	 * @param io         The {@link FileIO} used to open the files and allocate
+	 *                   buffers.
+	 * @throws FileProcessingException If the file is already encrypted with the
+	 *                                 new key, was not encrypted with the old one,
+	 *                                 or is corrupt.
+	 */
+	public static void rekeyFile(File f, File dest, int bufferSize, CipherKey oldKey, CipherKey newKey,
+			FileFormat format, FileIO io) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidKeyException, InvalidAlgorithmParameterException, FileProcessingException {
+		bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		ByteBuffer in = io.allocate(bufferSize), plain = io.allocate(bufferSize);
+		try (ReadableByteChannel src = io.openRead(f)) {
+			FileIO.readFully(src, in);
+			in.flip();
+			if (FileIO.startsWith(in, newKey.getHeader()) || FileIO.startsWith(in, newKey.getAuthenticatedHeader()))
+				throw new FileProcessingException("Detected that file is already encrypted with the new key. Skipping...");
+
+			try (ReadableByteChannel decrypted = DecryptionProcessor.decrypting(src, in, f, bufferSize, oldKey, io)) {
+				FileIO.readFully(decrypted, plain);
+				plain.flip();
+				try (WritableByteChannel dst = io.openWrite(dest)) {
+					EncryptionProcessor.encrypt(decrypted, plain, dst, bufferSize, newKey, format, io);
+				}
+			}
+		} finally {
+			io.release(in);
+			io.release(plain);
+		}
+	}
+
+}
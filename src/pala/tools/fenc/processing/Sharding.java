@@ -0,0 +1,362 @@
+package pala.tools.fenc.processing;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * Splits one job between several processes, possibly on different hosts,
+ * that walk the same tree. Each file is identified by its path relative to the
+ * argument it was found under, so processes may mount the tree in different
+ * places as long as they're given the same arguments relative to it. A file
+ * given directly (or in a file list) is identified by its path as given, made
+ * relative to the working directory if it's inside it, so two files with the
+ * same name in different directories are still told apart.
+ * </p>
+ * <p>
+ * With a fixed number of shards, each file belongs to exactly one shard,
+ * decided by a stable (FNV-1a) hash of its relative path, and each process
+ * only processes the files of its own shard. No coordination is needed, but
+ * shards that happen to get larger files take longer.
+ * </p>
+ * <p>
+ * With a claim directory (on a file system shared by every process), each
+ * process tries to claim a file just before processing it, by creating a claim
+ * file in the directory named after the hash of the file's relative path and
+ * the index of the argument it was found under (so that files with the same
+ * relative path under different arguments are claimed separately; processes
+ * must therefore be given their arguments in the same order). The
+ * creation is exclusive, so only one process succeeds and the others skip the
+ * file. Faster processes simply claim more files. Claims are never removed, so
+ * a new job needs an empty claim directory. Both modes may be combined.
+ * </p>
+ * <p>
+ * A claim file records who made it (the process's host, pid and start time,
+ * and its worker name if it has one) and the argument index and relative path
+ * of the file, as lines of tab separated keys and values. When a claim already
+ * exists, it is read back:
+ * <ul>
+ * <li>If it is for a different file, whose hash happens to be the same, the
+ * next claim file (<code>&lt;hash&gt;-1.claim</code>, and so on) is tried
+ * instead.</li>
+ * <li>If it was made under this process's worker name, the file is taken back,
+ * so that a worker that was restarted finishes the files it had claimed.</li>
+ * <li>If it was made by a process on this host that is no longer running, the
+ * claim is taken over: under a <code>.lock</code> file, so that only one
+ * process does so, the claim is replaced by one of this process's own.</li>
+ * </ul>
+ * Otherwise, the file is left to whoever claimed it. A claim whose owner can't
+ * be told (e.g. one that is still being written) is also left alone.
+ * </p>
+ * <p>
+ * Neither happens if the owner {@link #finish() finished}, which it records
+ * with a <code>.done</code> file, since its files were then all processed.
+ * Only the claims of a process that was killed are taken over, and the files
+ * it did finish before it was killed may be processed again.
+ * </p>
+ * <p>
+ * A file with hard links at several relative paths may be processed by more
+ * than one process, since the paths hash differently.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class Sharding {
+
+	private final int index, count;
+	private final Path claimDirectory, base;
+	private final MessageLogger logger;
+	private final String worker, host;
+	private final long pid, started;
+	private long assigned, otherShards, claimedElsewhere, reclaimed;
+
+	/**
+	 * @param index          The index of this process's shard, from
+	 *                       <code>0</code> to <code>count - 1</code>.
+	 * @param count          The number of shards, or <code>1</code> to not split
+	 *                       files into shards.
+	 * @param claimDirectory The directory to claim files in, or <code>null</code>
+	 *                       to not claim files.
+	 * @param worker         The name that this process claims files under, or
+	 *                       <code>null</code> to only claim them as this process.
+	 * @param base           The working directory, which absolute paths of files
+	 *                       given directly are made relative to.
+	 * @param logger         The logger that claiming failures are reported to.
+	 */
+	public Sharding(int index, int count, Path claimDirectory, String worker, Path base, MessageLogger logger) {
+		this.index = index;
+		this.count = count;
+		this.claimDirectory = claimDirectory;
+		this.worker = worker;
+		this.base = base.toAbsolutePath().normalize();
+		this.logger = logger;
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = "unknown";
+		}
+		this.host = host;
+		pid = ProcessHandle.current().pid();
+		started = startTime(ProcessHandle.current());
+	}
+
+	private static long startTime(ProcessHandle process) {
+		return process.info().startInstant().map(Instant::toEpochMilli).orElse(-1L);
+	}
+
+	/**
+	 * Computes the 64-bit FNV-1a hash of a relative path, with <code>/</code> as
+	 * the separator whatever the platform.
+	 */
+	public static long hash(Path relativePath) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : join(relativePath).getBytes(StandardCharsets.UTF_8))
+			hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+		return hash;
+	}
+
+	private static String join(Path relativePath) {
+		StringBuilder sb = new StringBuilder();
+		for (Path p : relativePath) {
+			if (sb.length() != 0)
+				sb.append('/');
+			sb.append(p);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Determines whether this process should process the file at the specified
+	 * relative path, claiming it if claiming is enabled.
+	 * 
+	 * @param argument     The index of the argument the file was found under (or
+	 *                     that is the file itself), counting from
+	 *                     <code>0</code>.
+	 * @param relativePath The file's path relative to the argument, or its path as
+	 *                     given if it was given directly.
+	 */
+	public boolean accepts(long argument, Path relativePath) {
+		if (relativePath.isAbsolute() && relativePath.normalize().startsWith(base))
+			relativePath = base.relativize(relativePath.normalize());
+		if (count > 1 && Long.remainderUnsigned(hash(relativePath), count) != index) {
+			otherShards++;
+			return false;
+		}
+		if (claimDirectory != null && !claim(argument, relativePath)) {
+			claimedElsewhere++;
+			return false;
+		}
+		assigned++;
+		return true;
+	}
+
+	private boolean claim(long argument, Path relativePath) {
+		long hash = hash(relativePath.getFileSystem().getPath(Long.toString(argument)).resolve(relativePath));
+		String path = join(relativePath);
+		try {
+			for (int n = 0;; n++) {
+				Path claim = claimDirectory.resolve(String.format(n == 0 ? "%016x.claim" : "%016x-%d.claim", hash, n));
+				try {
+					Files.write(claim, claimContents(argument, path), StandardOpenOption.CREATE_NEW,
+							StandardOpenOption.WRITE);
+					return true;
+				} catch (FileAlreadyExistsException e) {
+					Map<String, String> existing = readClaim(claim);
+					if (existing == null)
+						return false;
+					if (!Long.toString(argument).equals(existing.get("argument")) || !path.equals(existing.get("path")))
+						continue;
+					if (isFinished(existing))
+						return false;
+					if (worker != null && worker.equals(existing.get("worker"))) {
+						reclaimed++;
+						return true;
+					}
+					if (!host.equals(existing.get("host")) || isRunning(existing))
+						return false;
+					if (!takeOver(claim, existing, argument, path))
+						return false;
+					reclaimed++;
+					logger.success("CLAM", "Took over the claim on " + relativePath + " from process "
+							+ existing.get("pid") + ", which is no longer running.");
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			// Processing a file that another process may be processing could corrupt
+			// it, so a file that can't be claimed is left alone.
+			logger.failure("CLAM", "Failed to claim " + relativePath + "; it was not processed. [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+			return false;
+		}
+	}
+
+	private byte[] claimContents(long argument, String path) {
+		return ((worker == null ? "" : "worker\t" + worker + '\n') + "host\t" + host + "\npid\t" + pid
+				+ "\nstarted\t" + started + "\nargument\t" + argument + "\npath\t" + path + '\n')
+						.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Replaces the claim of a process that is no longer running with one of this
+	 * process's own. The replacement is made under a lock file, and only if the
+	 * claim is still the one that was read, so that of several processes taking
+	 * over the same claim at once, only one succeeds. A lock left by a process
+	 * that died while holding it keeps the claim from being taken over.
+	 */
+	private boolean takeOver(Path claim, Map<String, String> existing, long argument, String path)
+			throws IOException {
+		Path lock = claim.resolveSibling(claim.getFileName() + ".lock");
+		try {
+			Files.write(lock, claimContents(argument, path), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		try {
+			if (!existing.equals(readClaim(claim)))
+				return false;
+			Path replacement = claim.resolveSibling(claim.getFileName() + ".new");
+			Files.write(replacement, claimContents(argument, path));
+			Files.move(replacement, claim, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} finally {
+			Files.deleteIfExists(lock);
+		}
+	}
+
+	/**
+	 * Identifies the maker of a claim: its worker name if it had one, otherwise
+	 * the process.
+	 */
+	public static String owner(Map<String, String> claim) {
+		String worker = claim.get("worker");
+		return worker != null ? "worker " + worker
+				: "process " + claim.get("host") + ' ' + claim.get("pid") + ' ' + claim.get("started");
+	}
+
+	/**
+	 * @return The owner that this process's claims are made by, as given by
+	 *         {@link #owner(Map)}.
+	 */
+	public String getOwner() {
+		return worker != null ? "worker " + worker : "process " + host + ' ' + pid + ' ' + started;
+	}
+
+	private Path doneFile(String owner) {
+		return claimDirectory.resolve(String.format("%016x.done", hash(claimDirectory.getFileSystem().getPath(owner))));
+	}
+
+	private boolean isFinished(Map<String, String> claim) {
+		return Files.exists(doneFile(owner(claim)));
+	}
+
+	/**
+	 * Records in the claim directory that every file this process claimed has
+	 * been processed, so that its claims are never taken over. Called once the
+	 * run is done.
+	 */
+	public void finish() {
+		if (claimDirectory != null)
+			try {
+				Files.write(doneFile(getOwner()), (getOwner() + '\n').getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				logger.failure("CLAM", "Failed to record that this process finished its claims, so they may be taken "
+						+ "over and processed again. [Err msg: " + e.getLocalizedMessage() + ']');
+			}
+	}
+
+	private static boolean isRunning(Map<String, String> claim) {
+		long pid, started;
+		try {
+			pid = Long.parseLong(claim.get("pid"));
+			started = Long.parseLong(claim.get("started"));
+		} catch (NumberFormatException e) {
+			// Can't tell, so assume it is.
+			return true;
+		}
+		// A pid may have been reused by a newer process since.
+		return ProcessHandle.of(pid).map(p -> started == -1 || startTime(p) == -1 || startTime(p) == started)
+				.orElse(false);
+	}
+
+	/**
+	 * Reads a claim file's keys and values.
+	 *
+	 * @return The claim, or <code>null</code> if it is incomplete (e.g. because
+	 *         it is still being written) or gone.
+	 */
+	public static Map<String, String> readClaim(Path claim) throws IOException {
+		Map<String, String> values = new HashMap<>();
+		try {
+			for (String line : Files.readAllLines(claim, StandardCharsets.UTF_8)) {
+				int tab = line.indexOf('\t');
+				if (tab != -1)
+					values.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		// The path is written last.
+		return values.containsKey("path") ? values : null;
+	}
+
+	/**
+	 * @return The number of files this process took on.
+	 */
+	public long getAssigned() {
+		return assigned;
+	}
+
+	/**
+	 * @return The number of files left to other shards.
+	 */
+	public long getOtherShards() {
+		return otherShards;
+	}
+
+	/**
+	 * @return The number of the files this process took on that were claimed
+	 *         before, by a process that died or by this process's worker name.
+	 */
+	public long getReclaimed() {
+		return reclaimed;
+	}
+
+	/**
+	 * @return The number of files already claimed by other processes.
+	 */
+	public long getClaimedElsewhere() {
+		return claimedElsewhere;
+	}
+
+	/**
+	 * @return The directory that files are claimed in, or <code>null</code> if
+	 *         they aren't claimed.
+	 */
+	public Path getClaimDirectory() {
+		return claimDirectory;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+}
@@ -0,0 +1,178 @@
+package pala.tools.fenc.processing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * Creates the temporary files that files are processed into, and keeps track
+ * of the ones still in use so that they can be deleted if the program exits
+ * before it is done with them. Only live temporary files are tracked: a file
+ * is forgotten as soon as it's deleted or {@link #keep(File) kept}, so the
+ * memory used doesn't grow with the number of files processed (unlike
+ * {@link File#deleteOnExit()}, which remembers every path until the JVM
+ * exits).
+ * </p>
+ * <p>
+ * Temporary files are named <code>fenc-&lt;pid&gt;-&lt;n&gt;.tmp</code>, so
+ * that the files left behind by a process that was killed can be told apart
+ * from those of processes still running and {@link #sweep(MessageLogger)
+ * swept} by a later run. A file that becomes the only good copy of something
+ * (e.g. of a file being written back over its source) is {@link #keep(File)
+ * kept}: it's renamed to <code>.kept</code>, so neither the shutdown hook nor
+ * any sweep ever deletes it, and whoever it was handed to (a {@link Journal},
+ * or the user) is responsible for it.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class TempFiles implements Closeable {
+
+	private static final Pattern NAME = Pattern.compile("fenc-(\\d+)-\\d+\\.tmp");
+
+	/**
+	 * The {@link TempFiles} used by processors that aren't given their own. It is
+	 * never closed; its live files are deleted when the JVM exits.
+	 */
+	public static final TempFiles SYSTEM = new TempFiles(null);
+
+	private final File directory;
+	private final String prefix = "fenc-" + ProcessHandle.current().pid() + '-';
+	private final Set<File> live = ConcurrentHashMap.newKeySet();
+	private final Thread hook = new Thread(this::deleteAll, "fenc-temp-cleanup");
+	private boolean hooked, closed;
+
+	/**
+	 * @param directory The directory to create temporary files in, or
+	 *                  <code>null</code> for the system's temporary directory.
+	 */
+	public TempFiles(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return The directory that temporary files are created in.
+	 */
+	public File getDirectory() {
+		return directory == null ? new File(System.getProperty("java.io.tmpdir")) : directory;
+	}
+
+	/**
+	 * Creates a new, empty temporary file, which is deleted when the JVM exits
+	 * unless it is {@link #delete(File) deleted} or {@link #keep(File) kept}
+	 * first.
+	 */
+	public File create() throws IOException {
+		synchronized (this) {
+			if (closed)
+				throw new IOException("The temporary files have been closed.");
+			if (!hooked) {
+				Runtime.getRuntime().addShutdownHook(hook);
+				hooked = true;
+			}
+		}
+		File temp = File.createTempFile(prefix, ".tmp", directory);
+		live.add(temp);
+		return temp;
+	}
+
+	/**
+	 * Deletes a temporary file, including one that was {@link #keep(File) kept},
+	 * and stops tracking it.
+	 */
+	public void delete(File temp) {
+		live.remove(temp);
+		temp.delete();
+	}
+
+	/**
+	 * Stops tracking a temporary file and renames it so that no sweep deletes it,
+	 * for files that are handed off to be recovered from, by a {@link Journal} or
+	 * by the user.
+	 *
+	 * @return The file's new location.
+	 * @throws IOException If the file couldn't be renamed, in which case it is
+	 *                     still tracked.
+	 */
+	public File keep(File temp) throws IOException {
+		File kept = new File(temp.getParentFile(), temp.getName().replaceFirst("\\.tmp$", ".kept"));
+		Files.move(temp.toPath(), kept.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		live.remove(temp);
+		return kept;
+	}
+
+	/**
+	 * Deletes the temporary files left in the directory by processes that are no
+	 * longer running. Only files that were still live when their process died are
+	 * deleted; {@link #keep(File) kept} files are left alone.
+	 *
+	 * @param logger The logger that the number of files deleted, and failures,
+	 *               are reported to.
+	 */
+	public void sweep(MessageLogger logger) {
+		long swept = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(getDirectory().toPath(), "fenc-*.tmp")) {
+			for (Path p : entries) {
+				Matcher m = NAME.matcher(p.getFileName().toString());
+				if (!m.matches())
+					continue;
+				long pid;
+				try {
+					pid = Long.parseLong(m.group(1));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false))
+					continue;
+				try {
+					Files.deleteIfExists(p);
+					swept++;
+				} catch (IOException e) {
+					logger.failure("TMPF", "Failed to delete the orphaned temporary file " + p + ". [Err msg: "
+							+ e.getLocalizedMessage() + ']');
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.failure("TMPF", "Failed to look for orphaned temporary files in " + getDirectory() + ". [Err msg: "
+					+ e.getLocalizedMessage() + ']');
+		}
+		if (swept != 0)
+			logger.success("TMPF", "Deleted " + swept + " temporary files left behind by previous runs.");
+	}
+
+	private void deleteAll() {
+		for (File f : live)
+			f.delete();
+		live.clear();
+	}
+
+	/**
+	 * Deletes any temporary files still being tracked and removes the shutdown
+	 * hook, so that a long-lived process (e.g. a daemon) doesn't accumulate
+	 * hooks.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		deleteAll();
+		if (hooked)
+			try {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			} catch (IllegalStateException e) {
+				// Already shutting down; the hook is running.
+			}
+	}
+
+}
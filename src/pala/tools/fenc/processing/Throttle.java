@@ -0,0 +1,170 @@
+package pala.tools.fenc.processing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Limits the rate at which bytes are read and written, and the rate at which
+ * files are started, using a token bucket for each. Every thread sharing a
+ * {@link Throttle} draws from the same buckets, so the limits apply to a whole
+ * run, however many workers it has.
+ * </p>
+ * <p>
+ * Each bucket holds up to one second's worth of tokens, so short bursts after a
+ * pause are allowed. A request that takes more tokens than the bucket has
+ * leaves it in deficit, and waits for the deficit to refill, so requests larger
+ * than the bucket are still limited correctly. The rates can be changed at any time with
+ * {@link #setRates(long, long)}; a rate of <code>0</code> means unlimited.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class Throttle {
+
+	private static final class Bucket {
+		private long rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		/**
+		 * Takes the specified number of tokens.
+		 *
+		 * @return The number of nanoseconds the caller must wait before proceeding.
+		 */
+		private synchronized long take(long amount) {
+			if (rate == 0)
+				return 0;
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - last) * (rate / 1e9));
+			last = now;
+			tokens -= amount;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+
+		private synchronized void setRate(long rate) {
+			take(0);
+			this.rate = rate;
+			tokens = Math.min(tokens, rate);
+		}
+
+		private synchronized long getRate() {
+			return rate;
+		}
+	}
+
+	private final Bucket bytes = new Bucket(), files = new Bucket();
+
+	/**
+	 * @param bytesPerSecond The maximum number of bytes read and written per
+	 *                       second, or <code>0</code> for no limit.
+	 * @param filesPerSecond The maximum number of files started per second, or
+	 *                       <code>0</code> for no limit.
+	 */
+	public Throttle(long bytesPerSecond, long filesPerSecond) {
+		setRates(bytesPerSecond, filesPerSecond);
+	}
+
+	public void setRates(long bytesPerSecond, long filesPerSecond) {
+		bytes.setRate(bytesPerSecond);
+		files.setRate(filesPerSecond);
+	}
+
+	public long getBytesPerSecond() {
+		return bytes.getRate();
+	}
+
+	public long getFilesPerSecond() {
+		return files.getRate();
+	}
+
+	private static void await(long nanos) throws InterruptedIOException {
+		if (nanos != 0)
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled.");
+			}
+	}
+
+	/**
+	 * Blocks until the specified number of bytes may be transferred.
+	 */
+	public void acquireBytes(long amount) throws InterruptedIOException {
+		await(bytes.take(amount));
+	}
+
+	/**
+	 * Blocks until another file may be started.
+	 */
+	public void acquireFile() throws InterruptedIOException {
+		await(files.take(1));
+	}
+
+	/**
+	 * Returns a channel that reads from the specified channel, counting the bytes
+	 * read against this {@link Throttle}.
+	 */
+	public ReadableByteChannel wrap(ReadableByteChannel channel) {
+		return new ReadableByteChannel() {
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				int amt = channel.read(dst);
+				if (amt > 0)
+					acquireBytes(amt);
+				return amt;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Returns a channel that writes to the specified channel, counting the bytes
+	 * written against this {@link Throttle}. Bytes skipped over to leave a hole
+	 * aren't counted.
+	 */
+	public WritableByteChannel wrap(WritableByteChannel channel) {
+		return new FileIO.SkippingChannel() {
+
+			@Override
+			public void skip(long n) throws IOException {
+				FileIO.skip(channel, n);
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int amt = channel.write(src);
+				if (amt > 0)
+					acquireBytes(amt);
+				return amt;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,213 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * A {@link DirectoryProcessor} that sits in front of another one and walks the
+ * directories it is given, handing each file to the other processor only once,
+ * however many ways the file can be reached. Files are told apart by their
+ * {@link BasicFileAttributes#fileKey() file keys} (on Unix, the device and
+ * inode), so a file with several hard links, a file inside two overlapping
+ * arguments (e.g. <code>dir dir/sub</code>), and a file reached through a
+ * symbolic link are all processed once. Only the file keys of files already
+ * seen are kept, not their paths, and they're kept in a compact
+ * {@link FileKeySet}.
+ * </p>
+ * <p>
+ * How symbolic links found while walking are treated depends on the
+ * {@link SymlinkPolicy}. Paths given to the traversal directly are always
+ * followed.
+ * </p>
+ * <p>
+ * A traversal may also have a {@link PathFilter}, which every entry found
+ * while walking is checked against before anything else is done with it.
+ * Directories it excludes are not listed at all.
+ * </p>
+ * <p>
+ * If the traversal has a {@link Sharding}, files are only handed on if they
+ * belong to this process's share of the job.
+ * </p>
+ * <p>
+ * File systems that don't provide file keys get no deduplication; their files
+ * are processed every time they are reached.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class Traversal implements DirectoryProcessor {
+
+	public enum SymlinkPolicy {
+		/**
+		 * Symbolic links are ignored.
+		 */
+		SKIP,
+		/**
+		 * Symbolic links are followed. A link to a directory that contains the link
+		 * (which would otherwise be walked forever) is reported and not followed. A
+		 * directory that can be reached through several links is walked each time,
+		 * but the files in it are still processed once.
+		 */
+		FOLLOW,
+		/**
+		 * Symbolic links are followed, and every directory is walked at most once,
+		 * however many links lead to it. This also prevents cycles.
+		 */
+		ONCE
+	}
+
+	private final DirectoryProcessor delegate;
+	private final SymlinkPolicy symlinks;
+	private final MessageLogger logger;
+	private final PathFilter filter;
+	private final Sharding sharding;
+	private final FileKeySet files = new FileKeySet();
+	private final Set<Object> directories = new HashSet<>();
+	/**
+	 * The file keys of the directories being walked, from the innermost outwards.
+	 */
+	private final Deque<Object> ancestors = new ArrayDeque<>();
+	private long duplicates, skippedLinks, cycles;
+	/**
+	 * The index of the argument being walked, which identifies its files when
+	 * they're claimed.
+	 */
+	private long argument = -1;
+
+	/**
+	 * @param delegate The {@link DirectoryProcessor} that files are handed to.
+	 * @param symlinks How to treat symbolic links found while walking.
+	 * @param logger   The logger that cycles and traversal failures are reported
+	 *                 to.
+	 * @param filter   The {@link PathFilter} that decides which entries are
+	 *                 walked, or <code>null</code> to walk everything.
+	 * @param sharding The {@link Sharding} that decides which files this process
+	 *                 processes, or <code>null</code> to process them all.
+	 */
+	public Traversal(DirectoryProcessor delegate, SymlinkPolicy symlinks, MessageLogger logger,
+			PathFilter filter, Sharding sharding) {
+		this.delegate = delegate;
+		this.symlinks = symlinks;
+		this.logger = logger;
+		this.filter = filter;
+		this.sharding = sharding;
+	}
+
+	public Traversal(DirectoryProcessor delegate, SymlinkPolicy symlinks, MessageLogger logger) {
+		this(delegate, symlinks, logger, null, null);
+	}
+
+	@Override
+	public void handleAbnormalFileObject(File file) {
+		delegate.handleAbnormalFileObject(file);
+	}
+
+	@Override
+	public void processFile(File file) {
+		process(file);
+	}
+
+	@Override
+	public void processFile(File file, BasicFileAttributes attrs) {
+		argument++;
+		visit(file.toPath(), file.toPath(), attrs);
+	}
+
+	@Override
+	public void process(File file) {
+		argument++;
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			delegate.handleAbnormalFileObject(file);
+			return;
+		}
+		visit(file.toPath(), file.toPath(), attrs);
+	}
+
+	/**
+	 * @param root The argument being walked, which filter rules are relative to.
+	 */
+	private void visit(Path root, Path path, BasicFileAttributes attrs) {
+		if (attrs.isDirectory())
+			walk(root, path, attrs.fileKey());
+		else if (attrs.isRegularFile()) {
+			Object key = attrs.fileKey();
+			if (key != null && !files.add(key))
+				duplicates++;
+			// A file given directly is identified by its path as given.
+			else if (sharding == null || sharding.accepts(argument, path.equals(root) ? path : root.relativize(path)))
+				delegate.processFile(path.toFile(), attrs);
+		} else
+			delegate.handleAbnormalFileObject(path.toFile());
+	}
+
+	private void walk(Path root, Path dir, Object key) {
+		if (key != null) {
+			if (ancestors.contains(key)) {
+				cycles++;
+				logger.failure("CYCL", "Not walking " + dir + " again; it is a link to a directory that contains it.");
+				return;
+			}
+			// Under FOLLOW, a directory reached again is walked again, though the files
+			// in it were already processed.
+			if (!directories.add(key) && symlinks != SymlinkPolicy.FOLLOW)
+				return;
+			ancestors.push(key);
+		}
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path p : entries) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isSymbolicLink()) {
+						if (symlinks == SymlinkPolicy.SKIP) {
+							skippedLinks++;
+							continue;
+						}
+						attrs = Files.readAttributes(p, BasicFileAttributes.class);
+					}
+				} catch (IOException e) {
+					// Includes links whose targets don't exist.
+					delegate.handleAbnormalFileObject(p.toFile());
+					continue;
+				}
+				if (filter == null || filter.accepts(root.relativize(p), attrs))
+					visit(root, p, attrs);
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			logger.failure("TRAV", "Failed to list the directory " + dir + ". [Err msg: " + e.getLocalizedMessage()
+					+ ']');
+		} finally {
+			if (key != null)
+				ancestors.pop();
+		}
+	}
+
+	/**
+	 * Reports how many files were skipped as duplicates, how many symbolic links
+	 * were skipped, and how many cycles were found, if any were.
+	 */
+	public void report() {
+		if (duplicates != 0 || skippedLinks != 0 || cycles != 0)
+			logger.success("TRAV", "Skipped " + duplicates
+					+ " files already processed through another path (hard links, symbolic links, or overlapping arguments), "
+					+ skippedLinks + " symbolic links, and " + cycles + " directory cycles.");
+	}
+
+}
@@ -0,0 +1,202 @@
+package pala.tools.fenc.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import pala.tools.fenc.logging.MessageLogger;
+
+/**
+ * <p>
+ * A {@link DirectoryProcessor} that checks files encrypted in the
+ * {@link FileFormat#AUTHENTICATED authenticated format} for corruption without
+ * writing anything.
+ * </p>
+ * <p>
+ * For each file, the header is checked against the key, then the tag of every
+ * chunk is checked. The chunks of a large file are split into contiguous
+ * segments that are checked in parallel on this processor's own worker
+ * threads. Each corrupt chunk is reported with its offset in the file. Files in
+ * the {@link FileFormat#CBC CBC format} carry no tags, so they can't be
+ * verified and are reported as such.
+ * </p>
+ * <p>
+ * This processor may be used from multiple threads (e.g. behind a
+ * {@link LaneScheduler}) to verify several files at once. {@link #finish()}
+ * should be called once it is no longer needed.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class VerificationProcessor implements DirectoryProcessor {
+
+	/**
+	 * The fewest chunks that are given to a single worker.
+	 */
+	private static final int MIN_SEGMENT = 16;
+	/**
+	 * The most corrupt offsets listed for a single file.
+	 */
+	private static final int MAX_REPORTED = 16;
+
+	private final CipherKey key;
+	private final SecretKeySpec spec;
+	private final int workers;
+	private final ExecutorService executor;
+	private final MessageLogger logger;
+
+	/**
+	 * @param key     The key the files were encrypted with.
+	 * @param workers The number of threads used to check the chunks of a single
+	 *                file in parallel.
+	 * @param logger  The logger that verified and corrupt files are reported to.
+	 */
+	public VerificationProcessor(String key, int workers, MessageLogger logger) {
+		this(new CipherKey(key), workers, logger);
+	}
+
+	public VerificationProcessor(CipherKey key, int workers, MessageLogger logger) {
+		this.key = key;
+		spec = new SecretKeySpec(this.key.getKey(), "AES");
+		this.workers = workers;
+		this.logger = logger;
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "fenc-verify-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void processFile(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			byte[] pb = new byte[AuthenticatedFormat.PREAMBLE_LENGTH];
+			int amt = read(channel, ByteBuffer.wrap(pb), 0);
+			byte[] header = Arrays.copyOf(pb, 32);
+			if (amt >= 32 && Arrays.equals(header, key.getHeader())) {
+				logger.failure("UNAU", "The file " + file
+						+ " was encrypted in the CBC format, which has no authentication tags, so it can't be verified.");
+				return;
+			} else if (amt < 32 || !Arrays.equals(header, key.getAuthenticatedHeader())) {
+				logger.failure("NENC", "The file " + file
+						+ " was not encrypted with the provided key (or was not encrypted at all); its header does not match.");
+				return;
+			} else if (amt < pb.length) {
+				logger.failure("CORR", "The file " + file + " is corrupt; it is truncated within its preamble.");
+				return;
+			}
+			AuthenticatedFormat.Preamble preamble = AuthenticatedFormat.Preamble.parse(pb, file);
+
+			long body = channel.size() - pb.length, stride = preamble.getStride(), chunks = body / stride + 1,
+					lastSize = body % stride;
+			if (lastSize < AuthenticatedFormat.TAG_LENGTH) {
+				logger.failure("CORR", "The file " + file + " is corrupt; it is truncated at offset " + channel.size()
+						+ " and its last chunk is missing.");
+				return;
+			}
+
+			List<Long> corrupt = new ArrayList<>();
+			long segment = Math.max(MIN_SEGMENT, (chunks + workers - 1) / workers);
+			if (segment >= chunks)
+				corrupt.addAll(check(channel, preamble, 0, chunks, chunks, lastSize));
+			else {
+				List<Future<List<Long>>> futures = new ArrayList<>();
+				for (long start = 0; start < chunks; start += segment) {
+					long s = start, e = Math.min(chunks, start + segment);
+					futures.add(executor.submit(() -> check(channel, preamble, s, e, chunks, lastSize)));
+				}
+				for (Future<List<Long>> f : futures)
+					try {
+						corrupt.addAll(f.get());
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof IOException)
+							throw (IOException) cause;
+						throw new FileProcessingException(cause);
+					}
+			}
+
+			if (corrupt.isEmpty())
+				logger.success("SUCC", "Verified " + file + " (" + chunks + " chunks).");
+			else {
+				StringBuilder sb = new StringBuilder("The file ").append(file).append(" is corrupt; ")
+						.append(corrupt.size()).append(" of its ").append(chunks)
+						.append(" chunks failed authentication, at offsets: ");
+				for (int i = 0; i < corrupt.size() && i < MAX_REPORTED; i++)
+					sb.append(i == 0 ? "" : ", ").append(pb.length + corrupt.get(i) * stride);
+				if (corrupt.size() > MAX_REPORTED)
+					sb.append(", ...");
+				logger.failure("CORR", sb.append('.').toString());
+			}
+		} catch (IOException e) {
+			logger.failure("IOEX",
+					"Failed to read the file " + file + " to verify it. [Err msg: " + e.getLocalizedMessage() + ']');
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.failure("INTR", "Interrupted while verifying " + file + '.');
+		} catch (FileProcessingException | GeneralSecurityException e) {
+			logger.failure("ALGF", "Failed to verify " + file + ". [Err msg: " + e.getLocalizedMessage() + ']');
+		}
+	}
+
+	/**
+	 * Checks the chunks with indices from <code>start</code> (inclusive) to
+	 * <code>end</code> (exclusive).
+	 *
+	 * @return The indices of the chunks that failed authentication.
+	 */
+	private List<Long> check(FileChannel channel, AuthenticatedFormat.Preamble preamble, long start, long end,
+			long chunks, long lastSize) throws IOException, GeneralSecurityException {
+		Cipher cipher = AuthenticatedFormat.cipher();
+		byte[] chunk = new byte[preamble.getStride()], scratch = new byte[preamble.getStride()];
+		ByteBuffer buff = ByteBuffer.wrap(chunk);
+		List<Long> corrupt = new ArrayList<>();
+		for (long i = start; i < end; i++) {
+			boolean last = i == chunks - 1;
+			int len = last ? (int) lastSize : chunk.length;
+			buff.clear().limit(len);
+			if (read(channel, buff, AuthenticatedFormat.PREAMBLE_LENGTH + i * preamble.getStride()) < len
+					|| !AuthenticatedFormat.check(cipher, spec, preamble, i, last, chunk, len, scratch))
+				corrupt.add(i);
+		}
+		return corrupt;
+	}
+
+	/**
+	 * Reads from the channel at the specified position until the buffer is full or
+	 * the end of the channel is reached.
+	 *
+	 * @return The number of bytes read.
+	 */
+	private static int read(FileChannel channel, ByteBuffer buff, long position) throws IOException {
+		int amt = 0, c;
+		while (buff.hasRemaining() && (c = channel.read(buff, position + amt)) != -1)
+			amt += c;
+		return amt;
+	}
+
+	/**
+	 * Shuts down the worker threads. Files that are being verified are finished
+	 * first.
+	 */
+	public void finish() {
+		executor.shutdown();
+	}
+
+}